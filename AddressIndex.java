@@ -0,0 +1,146 @@
+/*
+ * AddressIndex.java
+ *
+ * This class represents a secondary index of a UTXO pool, from each address
+ * to the UTXOs paid to it and their total amount, so that balance and coin
+ * selection queries cost O(coins owned) instead of a scan of the pool
+ */
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class AddressIndex {
+
+   // Addresses are told apart by exponent and modulus, not by RSAKey object
+   private final HashMap<Fingerprint, Coins> byAddress = new HashMap<Fingerprint, Coins>();
+
+   // Created by UTXOPool.enableAddressIndex()
+   AddressIndex() {
+   }
+
+   // Returns the total amount, in base units, of the UTXOs paid to <address>
+   public synchronized long getBalance(RSAKey address) {
+      Coins coins = byAddress.get(new Fingerprint(address));
+      return coins == null ? 0 : coins.balance;
+   }
+
+   // Returns the number of UTXOs paid to <address>
+   public synchronized int numUTXOs(RSAKey address) {
+      Coins coins = byAddress.get(new Fingerprint(address));
+      return coins == null ? 0 : coins.amounts.size();
+   }
+
+   // Returns the UTXOs paid to <address>, oldest first
+   public synchronized ArrayList<UTXO> getUTXOs(RSAKey address) {
+      Coins coins = byAddress.get(new Fingerprint(address));
+      if (coins == null)
+         return new ArrayList<UTXO>();
+      return new ArrayList<UTXO>(coins.amounts.keySet());
+   }
+
+   // Returns UTXOs paid to <address> worth at least <amount> base units in
+   // total, taken oldest first, or null if its balance is not enough. Coins
+   // whose value is not a positive amount are never selected.
+   public synchronized ArrayList<UTXO> selectCoins(RSAKey address, long amount) {
+      Coins coins = byAddress.get(new Fingerprint(address));
+      ArrayList<UTXO> selected = new ArrayList<UTXO>();
+      if (amount <= 0)
+         return selected;
+      if (coins == null || coins.balance < amount)
+         return null;
+      long total = 0;
+      for (Map.Entry<UTXO, Long> e : coins.amounts.entrySet()) {
+         if (e.getValue() <= 0)
+            continue;
+         selected.add(e.getKey());
+         total += e.getValue();
+         if (total >= amount)
+            return selected;
+      }
+      return null;
+   }
+
+   // Records that <utxo> maps to <txOut> instead of <old>; either may be null.
+   // Throws ArithmeticException, changing nothing, if the balance of the
+   // address would not fit in a long.
+   synchronized void add(UTXO utxo, Transaction.Output old, Transaction.Output txOut) {
+      if (txOut == null) {
+         remove(utxo, old);
+         return;
+      }
+      Fingerprint to = new Fingerprint(txOut.address);
+      long amount = amountOf(txOut);
+      Coins coins = byAddress.get(to);
+      long balance = coins == null ? 0 : coins.balance;
+      if (old != null && to.equals(new Fingerprint(old.address)))
+         balance -= amountOf(old);
+      balance = Math.addExact(balance, amount);
+
+      remove(utxo, old);
+      coins = byAddress.get(to);
+      if (coins == null) {
+         coins = new Coins();
+         byAddress.put(to, coins);
+      }
+      coins.amounts.put(utxo, amount);
+      coins.balance = balance;
+   }
+
+   // Records that <utxo>, which mapped to <old>, was removed; nothing if
+   // <old> is null
+   synchronized void remove(UTXO utxo, Transaction.Output old) {
+      if (old == null)
+         return;
+      Fingerprint from = new Fingerprint(old.address);
+      Coins coins = byAddress.get(from);
+      if (coins == null)
+         return;
+      Long amount = coins.amounts.remove(utxo);
+      if (amount == null)
+         return;
+      if (coins.amounts.isEmpty())
+         byAddress.remove(from);
+      else
+         coins.balance -= amount;
+   }
+
+   // The amount <txOut> counts for: 0 if its value is not a valid amount,
+   // since no valid transaction can spend it
+   private static long amountOf(Transaction.Output txOut) {
+      try {
+         return txOut.getAmount();
+      } catch (ArithmeticException e) {
+         return 0;
+      }
+   }
+
+   // The UTXOs of one address with their amounts, oldest first
+   private static class Coins {
+      final LinkedHashMap<UTXO, Long> amounts = new LinkedHashMap<UTXO, Long>();
+      long balance;
+   }
+
+   private static class Fingerprint {
+      final BigInteger exponent;
+      final BigInteger modulus;
+
+      Fingerprint(RSAKey address) {
+         exponent = address.getExponent();
+         modulus = address.getModulus();
+      }
+
+      public boolean equals(Object other) {
+         if (!(other instanceof Fingerprint))
+            return false;
+         Fingerprint f = (Fingerprint) other;
+         return modulus.equals(f.modulus) && exponent.equals(f.exponent);
+      }
+
+      public int hashCode() {
+         return modulus.hashCode();
+      }
+   }
+}
@@ -0,0 +1,119 @@
+/*
+ * AddressTable.java
+ *
+ * This class represents the table of interned addresses: one shared RSAKey,
+ * and one shared serialization of it, per distinct exponent and modulus, so
+ * that the outputs pools and decoders hand out for the same address hold the
+ * same key object. Outputs added to a Transaction keep the key they were
+ * given. A key nothing else refers to any more is dropped from the table.
+ */
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class AddressTable {
+
+   private static final ConcurrentHashMap<Fingerprint, Entry> TABLE = new ConcurrentHashMap<Fingerprint, Entry>();
+
+   // Entries whose key was collected, waiting to be removed from TABLE
+   private static final ReferenceQueue<RSAKey> CLEARED = new ReferenceQueue<RSAKey>();
+
+   private AddressTable() {
+   }
+
+   // Returns the shared RSAKey with the exponent and modulus of <address>,
+   // which becomes the shared one if there is none yet; null for null
+   public static RSAKey intern(RSAKey address) {
+      if (address == null)
+         return null;
+      for (;;) {
+         RSAKey key = entry(address).get();
+         if (key != null)
+            return key;
+      }
+   }
+
+   // Same as intern(new RSAKey(exponent, modulus)), without creating the key
+   // if an equal one is already shared
+   public static RSAKey intern(BigInteger exponent, BigInteger modulus) {
+      Entry e = TABLE.get(new Fingerprint(exponent, modulus));
+      RSAKey key = e == null ? null : e.get();
+      return key != null ? key : intern(new RSAKey(exponent, modulus));
+   }
+
+   // Returns the number of distinct addresses in the table
+   public static int size() {
+      expunge();
+      return TABLE.size();
+   }
+
+   // Returns the exponent bytes followed by the modulus bytes of <address>,
+   // shared by all equal addresses; callers must not modify the array
+   static byte[] encoded(RSAKey address) {
+      return entry(address).encoded;
+   }
+
+   // Returns the entry for <address>, adding one if there is none, whose key
+   // was still reachable when it was found
+   private static Entry entry(RSAKey address) {
+      expunge();
+      Fingerprint f = new Fingerprint(address.getExponent(), address.getModulus());
+      for (;;) {
+         Entry e = TABLE.get(f);
+         if (e != null && e.get() != null)
+            return e;
+         Entry fresh = new Entry(address, f);
+         if (e == null ? TABLE.putIfAbsent(f, fresh) == null : TABLE.replace(f, e, fresh))
+            return fresh;
+      }
+   }
+
+   private static void expunge() {
+      Object cleared;
+      while ((cleared = CLEARED.poll()) != null) {
+         Entry e = (Entry) cleared;
+         TABLE.remove(e.fingerprint, e);
+      }
+   }
+
+   // The shared key, weakly held, and its serialization
+   private static class Entry extends WeakReference<RSAKey> {
+      final Fingerprint fingerprint;
+      final byte[] encoded;
+
+      Entry(RSAKey key, Fingerprint fingerprint) {
+         super(key, CLEARED);
+         this.fingerprint = fingerprint;
+         byte[] exponent = key.getExponent().toByteArray();
+         byte[] modulus = key.getModulus().toByteArray();
+         encoded = Arrays.copyOf(exponent, exponent.length + modulus.length);
+         System.arraycopy(modulus, 0, encoded, exponent.length, modulus.length);
+      }
+   }
+
+   private static class Fingerprint {
+      final BigInteger exponent;
+      final BigInteger modulus;
+      final int hashCode;
+
+      Fingerprint(BigInteger exponent, BigInteger modulus) {
+         this.exponent = exponent;
+         this.modulus = modulus;
+         hashCode = modulus.hashCode() * 31 + exponent.hashCode();
+      }
+
+      public boolean equals(Object other) {
+         if (!(other instanceof Fingerprint))
+            return false;
+         Fingerprint f = (Fingerprint) other;
+         return hashCode == f.hashCode && modulus.equals(f.modulus) && exponent.equals(f.exponent);
+      }
+
+      public int hashCode() {
+         return hashCode;
+      }
+   }
+}
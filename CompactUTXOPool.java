@@ -0,0 +1,427 @@
+/* 
+ * CompactUTXOPool.java
+ * 
+ * This class represents a UTXO pool stored in flat arrays with open addressing,
+ * for pools too large to keep one UTXO object, output and map node per entry:
+ * an entry is its hash, index, amount and the id of an interned address
+ */
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class CompactUTXOPool extends UTXOPool {
+   
+   // Length in bytes of the transaction hashes stored inline (SHA-256)
+   public static final int HASH_BYTES = 32;
+   
+   private static final int HASH_LONGS = HASH_BYTES / 8;
+   private static final int MIN_CAPACITY = 16;
+   
+   // Outputs handed out by this pool belong to no real transaction
+   private static final Transaction OWNER = new Transaction();
+   
+   // Slot i holds the hash in keys[4i..4i+3], the output index in indexes[i],
+   // the amount of the output in amounts[i] and the id of its address in
+   // addressIds[i]; used[i] tells whether the slot is taken. Slots are found
+   // by linear probing and freed by backward-shift deletion, so there are no
+   // tombstones.
+   private long[] keys;
+   private int[] indexes;
+   private long[] amounts;
+   private int[] addressIds;
+   private boolean[] used;
+   private int mask;
+   private int count;
+   
+   // Bumped whenever an entry is added or removed or the arrays are replaced,
+   // so that traversals can fail fast
+   private int modCount;
+   
+   // UTXOs whose hash is not HASH_BYTES long, or whose output has no address
+   // or a value that is not a valid amount, are rare and kept here
+   private HashMap<UTXO, Transaction.Output> other;
+   
+   // The interned address behind each id, the id of each, and the number of
+   // slots referring to each id. An id no slot refers to any more is freed,
+   // and its address let go, and freed ids are handed out again first.
+   private ArrayList<RSAKey> addresses;
+   private IdentityHashMap<RSAKey, Integer> idOf;
+   private int[] uses;
+   private int[] freeIds;
+   private int freeCount;
+   
+   // Creates a new empty CompactUTXOPool
+   public CompactUTXOPool() {
+      this(MIN_CAPACITY);
+   }
+   
+   // Creates a new empty CompactUTXOPool sized for <expected> UTXOs
+   public CompactUTXOPool(int expected) {
+      int capacity = MIN_CAPACITY;
+      while (capacity * 3 / 4 < expected)
+         capacity <<= 1;
+      allocate(capacity);
+      other = new HashMap<UTXO, Transaction.Output>();
+      allocateIds();
+   }
+   
+   // Creates a new CompactUTXOPool that is a copy of <uPool>
+   public CompactUTXOPool(UTXOPool uPool) {
+      if (uPool instanceof CompactUTXOPool) {
+         CompactUTXOPool p = (CompactUTXOPool) uPool;
+         keys = p.keys.clone();
+         indexes = p.indexes.clone();
+         amounts = p.amounts.clone();
+         addressIds = p.addressIds.clone();
+         used = p.used.clone();
+         mask = p.mask;
+         count = p.count;
+         other = new HashMap<UTXO, Transaction.Output>(p.other);
+         addresses = new ArrayList<RSAKey>(p.addresses);
+         idOf = new IdentityHashMap<RSAKey, Integer>(p.idOf);
+         uses = p.uses.clone();
+         freeIds = p.freeIds.clone();
+         freeCount = p.freeCount;
+      } else {
+         int capacity = MIN_CAPACITY;
+         while (capacity * 3 / 4 < uPool.size())
+            capacity <<= 1;
+         allocate(capacity);
+         other = new HashMap<UTXO, Transaction.Output>();
+         allocateIds();
+         uPool.forEach(new BiConsumer<UTXO, Transaction.Output>() {
+            public void accept(UTXO ut, Transaction.Output txOut) {
+               addUTXO(ut, txOut);
+            }
+         });
+      }
+   }
+   
+   public UTXOPool copy() {
+      return new CompactUTXOPool(this);
+   }
+   
+   // Stores the amount and the address id of <txOut> rather than <txOut>
+   // itself, so the output read back is an equal new one
+   public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+      if (tracking())
+         adding(utxo, getTxOutput(utxo), txOut);
+      byte[] txHash = utxo.getTxHash();
+      int index = utxo.getIndex();
+      long amount = 0;
+      boolean inline = txHash.length == HASH_BYTES && txOut != null && txOut.address != null;
+      if (inline) {
+         try {
+            amount = txOut.getAmount();
+         } catch (ArithmeticException e) {
+            inline = false;
+         }
+      }
+      if (!inline) {
+         if (txHash.length == HASH_BYTES) {
+            int slot = find(txHash, index);
+            if (slot >= 0)
+               delete(slot);
+         }
+         if (!other.containsKey(utxo))
+            modCount++;
+         other.put(utxo, txOut);
+         return;
+      }
+      if (!other.isEmpty() && other.remove(utxo) != null)
+         modCount++;
+      int addressId = idFor(txOut.address);
+      int slot = find(txHash, index);
+      if (slot >= 0) {
+         release(addressIds[slot]);
+         amounts[slot] = amount;
+         addressIds[slot] = addressId;
+         return;
+      }
+      if ((count + 1) * 4L > (mask + 1) * 3L) {
+         resize((mask + 1) * 2);
+      }
+      slot = slotFor(txHash, 0, index);
+      while (used[slot])
+         slot = (slot + 1) & mask;
+      for (int i = 0; i < HASH_LONGS; i++)
+         keys[slot * HASH_LONGS + i] = readLong(txHash, i * 8);
+      indexes[slot] = index;
+      amounts[slot] = amount;
+      addressIds[slot] = addressId;
+      used[slot] = true;
+      count++;
+      modCount++;
+   }
+   
+   public void removeUTXO(UTXO utxo) {
+      if (tracking())
+         removing(utxo, getTxOutput(utxo));
+      byte[] txHash = utxo.getTxHash();
+      if (txHash.length == HASH_BYTES) {
+         int slot = find(txHash, utxo.getIndex());
+         if (slot >= 0) {
+            delete(slot);
+            return;
+         }
+      }
+      if (other.containsKey(utxo)) {
+         other.remove(utxo);
+         modCount++;
+      }
+   }
+   
+   public Transaction.Output getTxOutput(UTXO ut) {
+      return getTxOutput(ut.getTxHash(), ut.getIndex());
+   }
+   
+   public boolean contains(UTXO utxo) {
+      return contains(utxo.getTxHash(), utxo.getIndex());
+   }
+   
+   // Returns a new Output built from the stored amount and address, asking
+   // the filter first; only the output is allocated
+   public Transaction.Output getTxOutput(byte[] txHash, int index) {
+      if (txHash == null || !mightContain(txHash, index))
+         return null;
+      if (txHash.length == HASH_BYTES) {
+         int slot = find(txHash, index);
+         if (slot >= 0)
+            return outputAt(slot);
+      }
+      if (!other.isEmpty()) {
+         UTXO ut = new UTXO(txHash, index);
+         if (other.containsKey(ut))
+            return other.get(ut);
+      }
+      notFound();
+      return null;
+   }
+   
+   // Looks up the UTXO without allocating, asking the filter first
+   public boolean contains(byte[] txHash, int index) {
+      if (txHash == null || !mightContain(txHash, index))
+         return false;
+      if (txHash.length == HASH_BYTES && find(txHash, index) >= 0)
+         return true;
+      if (!other.isEmpty() && other.containsKey(new UTXO(txHash, index)))
+         return true;
+      notFound();
+      return false;
+   }
+   
+   public int size() {
+      return count + other.size();
+   }
+   
+   public ArrayList<UTXO> getAllUTXO() {
+      ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(size());
+      byte[] txHash = new byte[HASH_BYTES];
+      for (int slot = 0; slot <= mask; slot++) {
+         if (!used[slot])
+            continue;
+         for (int i = 0; i < HASH_LONGS; i++)
+            writeLong(txHash, i * 8, keys[slot * HASH_LONGS + i]);
+         allUTXO.add(new UTXO(txHash, indexes[slot]));
+      }
+      allUTXO.addAll(other.keySet());
+      return allUTXO;
+   }
+   
+   // Walks the slot arrays in place, rebuilding each UTXO as it is reached;
+   // the slot range is split in half for parallel streams. Fail-fast.
+   public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+      Spliterator<Map.Entry<UTXO, Transaction.Output>> slots = new Slots(0, mask + 1, modCount);
+      if (other.isEmpty())
+         return slots;
+      return Stream.concat(StreamSupport.stream(slots, false),
+            StreamSupport.stream(new ImmutableEntries(other.entrySet().spliterator()), false)).spliterator();
+   }
+   
+   // Slots [from, to) of the arrays as they were when the traversal started
+   private class Slots extends SlotSpliterator {
+      private final int expected;
+      private final byte[] txHash = new byte[HASH_BYTES];
+      
+      Slots(int from, int to, int expected) {
+         super(from, to);
+         this.expected = expected;
+      }
+      
+      protected Map.Entry<UTXO, Transaction.Output> entryAt(int slot) {
+         if (modCount != expected)
+            throw new ConcurrentModificationException();
+         if (!used[slot])
+            return null;
+         for (int i = 0; i < HASH_LONGS; i++)
+            writeLong(txHash, i * 8, keys[slot * HASH_LONGS + i]);
+         return new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(
+               new UTXO(txHash, indexes[slot]), outputAt(slot));
+      }
+      
+      protected SlotSpliterator split(int from, int to) {
+         return new Slots(from, to, expected);
+      }
+   }
+   
+   // Returns a new Output for the UTXO in <slot>
+   private Transaction.Output outputAt(int slot) {
+      Transaction.Output txOut = OWNER.new Output(0, addresses.get(addressIds[slot]));
+      txOut.setAmount(amounts[slot]);
+      return txOut;
+   }
+   
+   // Returns the id of <address>, counting one more slot referring to it.
+   // An address new to the pool is interned and given a freed id if there is
+   // one, or the next one.
+   private int idFor(RSAKey address) {
+      RSAKey key = AddressTable.intern(address);
+      Integer id = idOf.get(key);
+      if (id == null) {
+         if (freeCount > 0) {
+            id = freeIds[--freeCount];
+            addresses.set(id, key);
+         } else {
+            id = addresses.size();
+            addresses.add(key);
+            if (id == uses.length)
+               uses = Arrays.copyOf(uses, id * 2);
+         }
+         idOf.put(key, id);
+      }
+      uses[id]++;
+      return id;
+   }
+   
+   // Counts one slot fewer referring to <id>, freeing it if it was the last
+   private void release(int id) {
+      if (--uses[id] > 0)
+         return;
+      idOf.remove(addresses.get(id));
+      addresses.set(id, null);
+      if (freeCount == freeIds.length)
+         freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+      freeIds[freeCount++] = id;
+   }
+   
+   private void allocateIds() {
+      addresses = new ArrayList<RSAKey>();
+      idOf = new IdentityHashMap<RSAKey, Integer>();
+      uses = new int[8];
+      freeIds = new int[8];
+      freeCount = 0;
+   }
+   
+   // Returns the slot holding (txHash, index), or -1
+   private int find(byte[] txHash, int index) {
+      int slot = slotFor(txHash, 0, index);
+      while (used[slot]) {
+         if (indexes[slot] == index && keyEquals(slot, txHash))
+            return slot;
+         slot = (slot + 1) & mask;
+      }
+      return -1;
+   }
+   
+   private boolean keyEquals(int slot, byte[] txHash) {
+      int base = slot * HASH_LONGS;
+      for (int i = 0; i < HASH_LONGS; i++) {
+         if (keys[base + i] != readLong(txHash, i * 8))
+            return false;
+      }
+      return true;
+   }
+   
+   // Frees <slot> and moves later entries of the same probe run back into it
+   private void delete(int slot) {
+      release(addressIds[slot]);
+      int hole = slot;
+      int next = (hole + 1) & mask;
+      while (used[next]) {
+         int home = slotFor(keys[next * HASH_LONGS], indexes[next]);
+         // the entry at next may move into the hole only if its home slot is
+         // not cyclically inside (hole, next]
+         if (((next - home) & mask) >= ((next - hole) & mask)) {
+            System.arraycopy(keys, next * HASH_LONGS, keys, hole * HASH_LONGS, HASH_LONGS);
+            indexes[hole] = indexes[next];
+            amounts[hole] = amounts[next];
+            addressIds[hole] = addressIds[next];
+            hole = next;
+         }
+         next = (next + 1) & mask;
+      }
+      used[hole] = false;
+      count--;
+      modCount++;
+   }
+   
+   private void resize(int capacity) {
+      long[] oldKeys = keys;
+      int[] oldIndexes = indexes;
+      long[] oldAmounts = amounts;
+      int[] oldAddressIds = addressIds;
+      boolean[] oldUsed = used;
+      allocate(capacity);
+      for (int old = 0; old < oldUsed.length; old++) {
+         if (!oldUsed[old])
+            continue;
+         int slot = slotFor(oldKeys[old * HASH_LONGS], oldIndexes[old]);
+         while (used[slot])
+            slot = (slot + 1) & mask;
+         System.arraycopy(oldKeys, old * HASH_LONGS, keys, slot * HASH_LONGS, HASH_LONGS);
+         indexes[slot] = oldIndexes[old];
+         amounts[slot] = oldAmounts[old];
+         addressIds[slot] = oldAddressIds[old];
+         used[slot] = true;
+      }
+   }
+   
+   private void allocate(int capacity) {
+      modCount++;
+      keys = new long[capacity * HASH_LONGS];
+      indexes = new int[capacity];
+      amounts = new long[capacity];
+      addressIds = new int[capacity];
+      used = new boolean[capacity];
+      mask = capacity - 1;
+   }
+   
+   private int slotFor(byte[] txHash, int offset, int index) {
+      return slotFor(readLong(txHash, offset), index);
+   }
+   
+   // The first eight hash bytes are mixed with the index; the finalizer of
+   // MurmurHash3 keeps clustering low even for hashes that are not random
+   private int slotFor(long first, int index) {
+      long h = first ^ (index * 0x9E3779B97F4A7C15L);
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return (int) h & mask;
+   }
+   
+   private static long readLong(byte[] b, int off) {
+      return ((long) b[off] << 56) | ((long) (b[off + 1] & 0xff) << 48)
+         | ((long) (b[off + 2] & 0xff) << 40) | ((long) (b[off + 3] & 0xff) << 32)
+         | ((long) (b[off + 4] & 0xff) << 24) | ((b[off + 5] & 0xff) << 16)
+         | ((b[off + 6] & 0xff) << 8) | (b[off + 7] & 0xff);
+   }
+   
+   private static void writeLong(byte[] b, int off, long v) {
+      for (int i = 7; i >= 0; i--) {
+         b[off + i] = (byte) v;
+         v >>>= 8;
+      }
+   }
+}
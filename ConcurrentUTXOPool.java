@@ -0,0 +1,198 @@
+/* 
+ * ConcurrentUTXOPool.java
+ * 
+ * This class represents a UTXO pool that many threads may read and update at
+ * once, with an atomic operation to spend a whole set of UTXOs
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+public class ConcurrentUTXOPool extends UTXOPool {
+   
+   // Reads go straight to the map; every write holds the lock of the stripe
+   // its UTXO hashes to, so a spendAll() holding all of its stripes sees no
+   // other write to those UTXOs
+   private final ConcurrentHashMap<UTXO, Transaction.Output> map;
+   private final ReentrantLock[] stripes;
+   
+   // Creates a new empty ConcurrentUTXOPool with a stripe count suited to the
+   // number of processors
+   public ConcurrentUTXOPool() {
+      this(4 * Runtime.getRuntime().availableProcessors());
+   }
+   
+   // Creates a new empty ConcurrentUTXOPool with at least <numStripes> locks
+   public ConcurrentUTXOPool(int numStripes) {
+      map = new ConcurrentHashMap<UTXO, Transaction.Output>();
+      stripes = newStripes(numStripes);
+   }
+   
+   // Creates a new ConcurrentUTXOPool that is a copy of <uPool>
+   public ConcurrentUTXOPool(UTXOPool uPool) {
+      map = new ConcurrentHashMap<UTXO, Transaction.Output>(Math.max(16, uPool.size() * 4 / 3));
+      stripes = newStripes(4 * Runtime.getRuntime().availableProcessors());
+      uPool.forEach(new BiConsumer<UTXO, Transaction.Output>() {
+         public void accept(UTXO ut, Transaction.Output txOut) {
+            map.put(ut, txOut);
+         }
+      });
+   }
+   
+   private static ReentrantLock[] newStripes(int numStripes) {
+      int n = 1;
+      while (n < numStripes)
+         n <<= 1;
+      ReentrantLock[] locks = new ReentrantLock[n];
+      for (int i = 0; i < n; i++)
+         locks[i] = new ReentrantLock();
+      return locks;
+   }
+   
+   public UTXOPool copy() {
+      return new ConcurrentUTXOPool(this);
+   }
+   
+   // Outputs must not be null
+   public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+      ReentrantLock lock = stripes[stripe(utxo)];
+      lock.lock();
+      try {
+         if (tracking())
+            adding(utxo, map.get(utxo), txOut);
+         map.put(utxo, txOut);
+      } finally {
+         lock.unlock();
+      }
+   }
+   
+   public void removeUTXO(UTXO utxo) {
+      ReentrantLock lock = stripes[stripe(utxo)];
+      lock.lock();
+      try {
+         if (tracking())
+            removing(utxo, map.get(utxo));
+         map.remove(utxo);
+      } finally {
+         lock.unlock();
+      }
+   }
+   
+   /* Atomically removes every UTXO in <spent> and adds every mapping in
+    * <created>, provided all of <spent> are in the pool; otherwise changes
+    * nothing. Returns whether the change was made. Two calls that spend a
+    * common UTXO can never both succeed. Throws IllegalArgumentException,
+    * before changing or reporting anything, if <spent> holds a UTXO twice.
+    */
+   public boolean spendAll(Collection<UTXO> spent, Map<UTXO, Transaction.Output> created) {
+      if (!(spent instanceof Set) && new HashSet<UTXO>(spent).size() != spent.size())
+         throw new IllegalArgumentException("UTXO spent twice in one call");
+      if (created == null)
+         created = Collections.emptyMap();
+      int[] held = new int[spent.size() + created.size()];
+      int n = 0;
+      for (UTXO ut : spent)
+         held[n++] = stripe(ut);
+      for (UTXO ut : created.keySet())
+         held[n++] = stripe(ut);
+      
+      // take the stripes in ascending order, once each, so that concurrent
+      // calls cannot deadlock
+      Arrays.sort(held);
+      int distinct = 0;
+      for (int i = 0; i < held.length; i++) {
+         if (i == 0 || held[i] != held[i - 1])
+            held[distinct++] = held[i];
+      }
+      for (int i = 0; i < distinct; i++)
+         stripes[held[i]].lock();
+      try {
+         for (UTXO ut : spent) {
+            if (!map.containsKey(ut))
+               return false;
+         }
+         if (tracking())
+            track(spent, created);
+         for (UTXO ut : spent)
+            map.remove(ut);
+         map.putAll(created);
+         return true;
+      } finally {
+         for (int i = distinct - 1; i >= 0; i--)
+            stripes[held[i]].unlock();
+      }
+   }
+   
+   // Reports the changes spendAll is about to make, in the order it makes
+   // them; if one is refused, the ones already reported are reverted first
+   private void track(Collection<UTXO> spent, Map<UTXO, Transaction.Output> created) {
+      for (UTXO ut : spent)
+         removing(ut, map.get(ut));
+      HashSet<UTXO> gone = new HashSet<UTXO>(spent);
+      ArrayList<UTXO> done = new ArrayList<UTXO>();
+      try {
+         for (Map.Entry<UTXO, Transaction.Output> e : created.entrySet()) {
+            UTXO ut = e.getKey();
+            adding(ut, gone.contains(ut) ? null : map.get(ut), e.getValue());
+            done.add(ut);
+         }
+      } catch (RuntimeException x) {
+         for (UTXO ut : done)
+            adding(ut, created.get(ut), gone.contains(ut) ? null : map.get(ut));
+         for (UTXO ut : spent)
+            adding(ut, null, map.get(ut));
+         throw x;
+      }
+   }
+   
+   public Transaction.Output getTxOutput(UTXO ut) {
+      return map.get(ut);
+   }
+   
+   public boolean contains(UTXO utxo) {
+      return map.containsKey(utxo);
+   }
+   
+   public int size() {
+      return map.size();
+   }
+   
+   // Weakly consistent: reflects some of the writes made during the call
+   public ArrayList<UTXO> getAllUTXO() {
+      return new ArrayList<UTXO>(map.keySet());
+   }
+   
+   // Weakly consistent, like getAllUTXO(), and never throws
+   // ConcurrentModificationException
+   public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+      return new ImmutableEntries(map.entrySet().spliterator());
+   }
+   
+   // Safe to call while other threads change the pool: the filter is built
+   // and swapped in holding every stripe, so no write can miss it
+   public void enableFilter() {
+      for (int i = 0; i < stripes.length; i++)
+         stripes[i].lock();
+      try {
+         super.enableFilter();
+      } finally {
+         for (int i = stripes.length - 1; i >= 0; i--)
+            stripes[i].unlock();
+      }
+   }
+   
+   private int stripe(UTXO utxo) {
+      int h = utxo.hashCode();
+      h ^= h >>> 16;
+      return h & (stripes.length - 1);
+   }
+}
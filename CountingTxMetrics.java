@@ -0,0 +1,95 @@
+/* 
+ * CountingTxMetrics.java
+ * 
+ * This class represents the standard TxMetrics implementation: counters and
+ * latency histograms that are safe to update from many threads
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class CountingTxMetrics implements TxMetrics {
+   
+   private final LatencyHistogram signatures = new LatencyHistogram();
+   private final LatencyHistogram serialization = new LatencyHistogram();
+   private final LatencyHistogram lookups = new LatencyHistogram();
+   private final LatencyHistogram epochs = new LatencyHistogram();
+   private final LongAdder deferred = new LongAdder();
+   private final LongAdder proposed = new LongAdder();
+   private final LongAdder accepted = new LongAdder();
+   private final AtomicLongArray rejected = new AtomicLongArray(RejectReason.values().length);
+   
+   public boolean isEnabled() {
+      return true;
+   }
+   
+   public void signatureVerified(long nanos) {
+      signatures.record(nanos);
+   }
+   
+   public void rawDataSerialized(long nanos) {
+      serialization.record(nanos);
+   }
+   
+   public void utxoLookup(long nanos) {
+      lookups.record(nanos);
+   }
+   
+   public void deferred(int txs) {
+      deferred.add(txs);
+   }
+   
+   public void rejected(RejectReason reason) {
+      rejected.incrementAndGet(reason.ordinal());
+   }
+   
+   public void epoch(long nanos, int proposed, int accepted) {
+      epochs.record(nanos);
+      this.proposed.add(proposed);
+      this.accepted.add(accepted);
+   }
+   
+   public LatencyHistogram getSignatureLatency() {
+      return signatures;
+   }
+   
+   public LatencyHistogram getSerializationLatency() {
+      return serialization;
+   }
+   
+   public LatencyHistogram getLookupLatency() {
+      return lookups;
+   }
+   
+   public LatencyHistogram getEpochLatency() {
+      return epochs;
+   }
+   
+   public long getDeferred() {
+      return deferred.sum();
+   }
+   
+   public long getProposed() {
+      return proposed.sum();
+   }
+   
+   public long getAccepted() {
+      return accepted.sum();
+   }
+   
+   public long getRejected(RejectReason reason) {
+      return rejected.get(reason.ordinal());
+   }
+   
+   public void reset() {
+      signatures.reset();
+      serialization.reset();
+      lookups.reset();
+      epochs.reset();
+      deferred.reset();
+      proposed.reset();
+      accepted.reset();
+      for (int i = 0; i < rejected.length(); i++)
+         rejected.set(i, 0);
+   }
+}
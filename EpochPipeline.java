@@ -0,0 +1,209 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Runs back-to-back epochs through a TxHandler in two stages connected by
+ * bounded queues, so that the stateless work on the next epochs overlaps
+ * with the handler applying the current one. The prepare stage hashes each
+ * transaction, encodes the data its inputs sign and checks every signature
+ * whose key it can resolve, storing the results in the handler's
+ * SignatureCache. The apply stage then calls handleTxs on the epochs in the
+ * order they were submitted, and finds most of their signatures already
+ * checked. The accepted transactions and the resulting pool are exactly
+ * those of calling handleTxs on each epoch in turn.
+ *
+ * The prepare stage resolves keys from the outputs of the epoch itself and
+ * of the epochs submitted shortly before it, and from the pool only when it
+ * is a ConcurrentUTXOPool, which may be read while the apply stage writes
+ * it. Other inputs are checked by the apply stage as before. While a
+ * pipeline is open, its handler must not be used directly and submitted
+ * transactions must not be changed.
+ */
+public class EpochPipeline {
+
+    public static final int DEFAULT_DEPTH = 2;
+
+    // stands for the end of the epochs in both queues
+    private static final Epoch END = new Epoch(null);
+
+    private final TxHandler handler;
+    private final ExecutorService verifier;   // null means the common fork-join pool
+
+    // epochs waiting to be prepared, and prepared epochs waiting to be applied;
+    // submit blocks while the first is full, the prepare stage while the
+    // second is
+    private final BlockingQueue<Epoch> toPrepare;
+    private final BlockingQueue<Epoch> toApply;
+
+    // outputs of the last epochs prepared, oldest first; only touched by the
+    // prepare stage
+    private final ArrayDeque<HashMap<UTXO, Transaction.Output>> recentOutputs = new ArrayDeque<HashMap<UTXO, Transaction.Output>>();
+    private final int window;
+
+    private final Thread prepareStage;
+    private final Thread applyStage;
+    private boolean closed;
+
+    // an epoch and the result of handling it
+    private static class Epoch {
+        final Transaction[] txs;
+        final CompletableFuture<Transaction[]> accepted = new CompletableFuture<Transaction[]>();
+
+        Epoch(Transaction[] txs) {
+            this.txs = txs;
+        }
+    }
+
+    /* Starts a pipeline over <handler> with DEFAULT_DEPTH epochs queued
+     * before each stage, checking signatures on the common fork-join pool.
+     */
+    public EpochPipeline(TxHandler handler) {
+        this(handler, DEFAULT_DEPTH, null);
+    }
+
+    /* Starts a pipeline over <handler> with at most <depth> epochs queued
+     * before each stage, checking signatures on <executor>, or the common
+     * fork-join pool if it is null. The executor is not shut down by the
+     * pipeline.
+     */
+    public EpochPipeline(TxHandler handler, int depth, ExecutorService executor) {
+        if (depth <= 0) throw new IllegalArgumentException("depth must be positive");
+        this.handler = handler;
+        this.verifier = executor;
+        toPrepare = new ArrayBlockingQueue<Epoch>(depth);
+        toApply = new ArrayBlockingQueue<Epoch>(depth);
+        // every epoch that can be queued or in a stage ahead of the one being
+        // prepared
+        window = 2 * depth + 2;
+
+        prepareStage = new Thread(new Runnable() {
+            public void run() {
+                runPrepareStage();
+            }
+        }, "epoch-prepare");
+        applyStage = new Thread(new Runnable() {
+            public void run() {
+                runApplyStage();
+            }
+        }, "epoch-apply");
+        prepareStage.setDaemon(true);
+        applyStage.setDaemon(true);
+        prepareStage.start();
+        applyStage.start();
+    }
+
+    /* Queues <possibleTxs> as the next epoch, blocking while the prepare
+     * stage is <depth> epochs behind. The future holds what handleTxs
+     * returned for the epoch, or the exception it threw.
+     */
+    public synchronized Future<Transaction[]> submit(Transaction[] possibleTxs) throws InterruptedException {
+        if (closed) throw new IllegalStateException("pipeline is closed");
+        Epoch epoch = new Epoch(possibleTxs.clone());
+        toPrepare.put(epoch);
+        return epoch.accepted;
+    }
+
+    /* Handles every epoch submitted so far, then stops both stages. The
+     * handler can be used directly again once this returns.
+     */
+    public synchronized void close() throws InterruptedException {
+        if (closed) return;
+        closed = true;
+        toPrepare.put(END);
+        prepareStage.join();
+        applyStage.join();
+    }
+
+    private void runPrepareStage() {
+        try {
+            for (;;) {
+                Epoch epoch = toPrepare.take();
+                if (epoch != END) {
+                    try {
+                        prepare(epoch.txs);
+                    } catch (RuntimeException e) {
+                        // nothing is lost: the apply stage does all the work
+                        // prepare would have done
+                    }
+                }
+                toApply.put(epoch);
+                if (epoch == END) return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runApplyStage() {
+        try {
+            for (;;) {
+                Epoch epoch = toApply.take();
+                if (epoch == END) return;
+                try {
+                    epoch.accepted.complete(handler.handleTxs(epoch.txs));
+                } catch (Throwable t) {
+                    epoch.accepted.completeExceptionally(t);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Hashes and indexes the outputs of <txs>, then checks every signature
+     * not yet in the cache whose key is known, as one SignatureVerifier.Batch.
+     * Results are cached whether or not the apply stage ends up using them;
+     * the cache is keyed by everything a result depends on.
+     */
+    private void prepare(Transaction[] txs) throws InterruptedException {
+        HashMap<UTXO, Transaction.Output> outputs = new HashMap<UTXO, Transaction.Output>();
+        for (Transaction tx : txs) {
+            byte[] hash = tx.getHash();
+            if (hash == null) continue;
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                outputs.put(new UTXO(hash, i), tx.getOutput(i));
+            }
+        }
+        recentOutputs.addLast(outputs);
+        if (recentOutputs.size() > window) recentOutputs.removeFirst();
+
+        SignatureCache cache = handler.getSignatureCache();
+        if (cache == null) return;
+        UTXOPool pool = handler.pool;
+        UTXOPool shared = pool instanceof ConcurrentUTXOPool ? pool : null;
+
+        SignatureVerifier.Batch batch = new SignatureVerifier.Batch();
+        ArrayList<Transaction> jobTx = new ArrayList<Transaction>();
+        ArrayList<Integer> jobIndex = new ArrayList<Integer>();
+        ArrayList<RSAKey> jobKey = new ArrayList<RSAKey>();
+        for (Transaction tx : txs) {
+            byte[][] rawData = null;
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.input(i);
+                if (input.prevTxHash == null || input.signature == null) continue;
+                Transaction.Output claimed = resolve(new UTXO(input.prevTxHash, input.outputIndex), shared);
+                if (claimed == null || cache.peek(tx, i, claimed.address) != null) continue;
+                if (rawData == null) rawData = tx.allRawDataToSign();
+                batch.add(claimed.address, rawData[i], input.signature);
+                jobTx.add(tx);
+                jobIndex.add(i);
+                jobKey.add(claimed.address);
+            }
+        }
+
+        boolean[] ok = batch.verify(verifier, handler.getMetrics());
+        for (int j = 0; j < ok.length; j++) {
+            cache.store(jobTx.get(j), jobIndex.get(j), jobKey.get(j), ok[j]);
+        }
+    }
+
+    // the output <utxo> most likely refers to when its epoch is applied, or
+    // null if the prepare stage cannot tell
+    private Transaction.Output resolve(UTXO utxo, UTXOPool shared) {
+        Iterator<HashMap<UTXO, Transaction.Output>> newestFirst = recentOutputs.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Transaction.Output out = newestFirst.next().get(utxo);
+            if (out != null) return out;
+        }
+        return shared != null ? shared.getTxOutput(utxo) : null;
+    }
+}
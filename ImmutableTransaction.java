@@ -0,0 +1,249 @@
+/*
+ * ImmutableTransaction.java
+ *
+ * This class represents a finalized transaction whose hash and raw encodings
+ * are computed once, when it is built, and which can be shared between
+ * threads without copying. Two ImmutableTransactions are equal when their
+ * hashes are.
+ */
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class ImmutableTransaction extends Transaction {
+
+   // The state below is reached only through final fields, so a transaction
+   // published through a data race is still seen fully built
+   private final ArrayList<Input> inputs;
+   private final ArrayList<Output> outputs;
+   private final byte[] hash;
+   private final byte[] rawTx;
+   private final byte[][] rawDataToSign;
+   private final int hashCode;
+
+   // Copies the inputs, signatures and outputs of <draft> and computes the
+   // hash and encodings; <draft> can be changed afterwards
+   private ImmutableTransaction(Transaction draft) {
+      for (Input in : draft.getInputs())
+         super.addInput(in.prevTxHash, in.outputIndex);
+      for (int i = 0; i < draft.numInputs(); i++)
+         super.addSignature(draft.getInput(i).signature, i);
+      for (Output op : draft.getOutputs()) {
+         super.addOutput(op.value, op.address);
+         super.getOutput(super.numOutputs() - 1).copyAmount(op);
+      }
+      inputs = super.getInputs();
+      outputs = super.getOutputs();
+
+      rawTx = super.getRawTx();
+      rawDataToSign = super.getAllRawDataToSign();
+      try {
+         hash = MessageDigest.getInstance("SHA-256").digest(rawTx);
+      } catch (NoSuchAlgorithmException x) {
+         throw new IllegalStateException(x);
+      }
+      super.setHash(hash);
+      hashCode = Arrays.hashCode(hash);
+   }
+
+   // Returns a new builder with no inputs and no outputs
+   public static Builder builder() {
+      return new Builder();
+   }
+
+   // Returns an immutable copy of <tx>, whatever hash <tx> has been given
+   public static ImmutableTransaction copyOf(Transaction tx) {
+      if (tx instanceof ImmutableTransaction)
+         return (ImmutableTransaction) tx;
+      return new ImmutableTransaction(tx);
+   }
+
+   /*
+    * Collects the parts of an ImmutableTransaction. Inputs are signed by
+    * passing getRawDataToSign(i) to the private key and the signature to
+    * addSignature(signature, i), as with Transaction.
+    */
+   public static class Builder {
+
+      private final Transaction draft = new Transaction();
+
+      private Builder() {
+      }
+
+      public Builder addInput(byte[] prevTxHash, int outputIndex) {
+         draft.addInput(prevTxHash, outputIndex);
+         return this;
+      }
+
+      public Builder addOutput(double value, RSAKey address) {
+         draft.addOutput(value, address);
+         return this;
+      }
+
+      public Builder addOutputAmount(long units, RSAKey address) {
+         draft.addOutputAmount(units, address);
+         return this;
+      }
+
+      public Builder addSignature(byte[] signature, int index) {
+         draft.addSignature(signature, index);
+         return this;
+      }
+
+      public byte[] getRawDataToSign(int index) {
+         return draft.getRawDataToSign(index);
+      }
+
+      public int numInputs() {
+         return draft.numInputs();
+      }
+
+      // Builds the transaction; the builder can keep being used afterwards
+      public ImmutableTransaction build() {
+         return new ImmutableTransaction(draft);
+      }
+   }
+
+   // Returns a copy of the hash
+   public byte[] getHash() {
+      return hash.clone();
+   }
+
+   public byte[] getRawTx() {
+      return rawTx.clone();
+   }
+
+   public byte[] getRawDataToSign(int index) {
+      if (index < 0 || index >= rawDataToSign.length)
+         return null;
+      return rawDataToSign[index].clone();
+   }
+
+   public byte[][] getAllRawDataToSign() {
+      byte[][] copy = new byte[rawDataToSign.length][];
+      for (int i = 0; i < copy.length; i++)
+         copy[i] = rawDataToSign[i].clone();
+      return copy;
+   }
+
+   // The encodings computed at build time, not copied
+   byte[] rawDataToSign(int index) {
+      return rawDataToSign[index];
+   }
+
+   byte[][] allRawDataToSign() {
+      return rawDataToSign;
+   }
+
+   // The inputs and outputs handed out are copies, so that changing them
+   // cannot change what the hash and encodings were computed over
+   public ArrayList<Input> getInputs() {
+      ArrayList<Input> copy = new ArrayList<Input>(inputs.size());
+      for (Input in : inputs)
+         copy.add(copy(in));
+      return copy;
+   }
+
+   public ArrayList<Output> getOutputs() {
+      ArrayList<Output> copy = new ArrayList<Output>(outputs.size());
+      for (Output op : outputs)
+         copy.add(copy(op));
+      return copy;
+   }
+
+   public Input getInput(int index) {
+      return index < inputs.size() ? copy(inputs.get(index)) : null;
+   }
+
+   public Output getOutput(int index) {
+      return index < outputs.size() ? copy(outputs.get(index)) : null;
+   }
+
+   // The inputs and outputs built with the transaction, not copied
+   Input input(int index) {
+      return index < inputs.size() ? inputs.get(index) : null;
+   }
+
+   Output output(int index) {
+      return index < outputs.size() ? outputs.get(index) : null;
+   }
+
+   private Input copy(Input in) {
+      Input c = new Input(in.prevTxHash, in.outputIndex);
+      c.addSignature(in.signature);
+      return c;
+   }
+
+   private Output copy(Output op) {
+      Output c = new Output(op.value, op.address);
+      c.copyAmount(op);
+      return c;
+   }
+
+   public int numInputs() {
+      return inputs.size();
+   }
+
+   public int numOutputs() {
+      return outputs.size();
+   }
+
+   // The hash was computed when the transaction was built. Being empty, this
+   // override also keeps the JVM from registering every instance with the
+   // finalizer, which it does for the hashing Transaction.finalize().
+   public void finalize() {
+   }
+
+   public void addInput(byte[] prevTxHash, int outputIndex) {
+      throw immutable();
+   }
+
+   public void addOutput(double value, RSAKey address) {
+      throw immutable();
+   }
+
+   public void addOutputAmount(long units, RSAKey address) {
+      throw immutable();
+   }
+
+   public void removeInput(int index) {
+      throw immutable();
+   }
+
+   public void removeInput(UTXO ut) {
+      throw immutable();
+   }
+
+   public void addSignature(byte[] signature, int index) {
+      throw immutable();
+   }
+
+   public void setHash(byte[] h) {
+      throw immutable();
+   }
+
+   private static UnsupportedOperationException immutable() {
+      return new UnsupportedOperationException("an ImmutableTransaction cannot be changed");
+   }
+
+   byte[] identity() {
+      return hash;
+   }
+
+   // Equal to any transaction of a kind that cannot change, such as a
+   // WireTransaction, with the same hash
+   public boolean equals(Object other) {
+      if (this == other)
+         return true;
+      if (!(other instanceof Transaction))
+         return false;
+      byte[] h = ((Transaction) other).identity();
+      return h != null && Arrays.equals(hash, h);
+   }
+
+   public int hashCode() {
+      return hashCode;
+   }
+}
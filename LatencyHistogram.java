@@ -0,0 +1,90 @@
+/* 
+ * LatencyHistogram.java
+ * 
+ * This class represents a lock-free histogram of latencies in nanoseconds,
+ * with log-linear buckets in the style of HdrHistogram: every power of two is
+ * split into 8 buckets, so any reported value is within 12.5% of the truth
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+   
+   private static final int SUB_BITS = 3;
+   private static final int SUB_BUCKETS = 1 << SUB_BITS;
+   private static final int BUCKETS = (64 - SUB_BITS + 1) << SUB_BITS;
+   
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong total = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+   
+   // Adds one value; negative values count as 0
+   public void record(long nanos) {
+      if (nanos < 0)
+         nanos = 0;
+      counts.incrementAndGet(bucket(nanos));
+      total.incrementAndGet();
+      sum.addAndGet(nanos);
+      long m = max.get();
+      while (nanos > m && !max.compareAndSet(m, nanos))
+         m = max.get();
+   }
+   
+   public long getCount() {
+      return total.get();
+   }
+   
+   public long getMax() {
+      return max.get();
+   }
+   
+   public double getMean() {
+      long n = total.get();
+      return n == 0 ? 0 : (double) sum.get() / n;
+   }
+   
+   // Returns the value below which a fraction <q> (0 to 1) of the recorded
+   // values fall, rounded up to the end of its bucket
+   public long getPercentile(double q) {
+      long n = total.get();
+      if (n == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil(q * n));
+      long seen = 0;
+      for (int b = 0; b < BUCKETS; b++) {
+         seen += counts.get(b);
+         if (seen >= rank)
+            return Math.min(upperBound(b), max.get());
+      }
+      return max.get();
+   }
+   
+   public void reset() {
+      for (int b = 0; b < BUCKETS; b++)
+         counts.set(b, 0);
+      total.set(0);
+      sum.set(0);
+      max.set(0);
+   }
+   
+   // Values below SUB_BUCKETS get a bucket each; above that, the bucket is
+   // picked by the highest set bit and the SUB_BITS bits after it
+   static int bucket(long v) {
+      if (v < SUB_BUCKETS)
+         return (int) v;
+      int msb = 63 - Long.numberOfLeadingZeros(v);
+      int sub = (int) (v >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return ((msb - SUB_BITS + 1) << SUB_BITS) + sub;
+   }
+   
+   static long upperBound(int b) {
+      if (b < SUB_BUCKETS)
+         return b;
+      int msb = (b >>> SUB_BITS) + SUB_BITS - 1;
+      long sub = b & (SUB_BUCKETS - 1);
+      long next = (SUB_BUCKETS + sub + 1) << (msb - SUB_BITS);
+      return next <= 0 ? Long.MAX_VALUE : next - 1;
+   }
+}
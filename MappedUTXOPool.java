@@ -0,0 +1,721 @@
+/* 
+ * MappedUTXOPool.java
+ * 
+ * This class represents a UTXO pool kept off the heap in a memory-mapped file,
+ * so that it survives restarts and can be reopened without replaying history
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.zip.CRC32;
+
+public class MappedUTXOPool extends UTXOPool implements Closeable {
+   
+   // Length in bytes of the transaction hashes this pool can store (SHA-256)
+   public static final int HASH_BYTES = 32;
+   
+   private static final int MAGIC = 0x5554584f;   // "UTXO"
+   private static final int VERSION = 4;
+   // Version 3 files have no region table and are upgraded in place, with
+   // one pass over their slots. Version 2 files have no checksums, and
+   // version 1 files also store raw double value bits; both are rewritten.
+   private static final int UNTRACKED_VERSION = 3;
+   private static final int UNCHECKED_VERSION = 2;
+   private static final int LEGACY_VERSION = 1;
+   private static final int HEADER_BYTES = 64;
+   
+   // Header fields, as offsets into the first HEADER_BYTES of the file. The
+   // count and tombstones are only written by checkpoint(); the state, the
+   // dirty regions and the checksum by checkpoint() and markDirty(). The
+   // checksum is a CRC32 of the rest of the header and of the region table.
+   private static final int H_MAGIC = 0;
+   private static final int H_VERSION = 4;
+   private static final int H_CAPACITY = 8;
+   private static final int H_COUNT = 12;
+   private static final int H_TOMBSTONES = 16;
+   private static final int H_STATE = 20;
+   private static final int H_CHECK = 24;
+   private static final int H_DIRTY = 32;
+   
+   // The header state: CLEAN if nothing changed since the count was written,
+   // DIRTY if the slots of the regions marked in the bitmap at H_DIRTY may
+   // not match the count. A region is marked, and the mark forced to disk,
+   // before its first change after a checkpoint.
+   private static final byte CLEAN = 0;
+   private static final byte DIRTY = 1;
+   
+   // The slots are split into REGIONS runs of equal length. The region
+   // table, after the slots, holds the number of FULL and of DELETED slots
+   // of each region as of the last checkpoint, so that after a crash only
+   // the dirty regions have to be counted again.
+   private static final int REGIONS = 256;
+   private static final int TABLE_BYTES = REGIONS * 8;
+   
+   // A slot is a state byte, the 32-byte hash, the output index, the output
+   // amount in base units, the id of the address in the key file and a CRC32
+   // of all but the state. The state byte is written last, so a new slot is
+   // either complete or still empty; a slot torn by a crash while it was
+   // written or rewritten fails its checksum when the file is reopened.
+   private static final int S_STATE = 0;
+   private static final int S_HASH = 1;
+   private static final int S_INDEX = S_HASH + HASH_BYTES;
+   private static final int S_VALUE = S_INDEX + 4;
+   private static final int S_KEY = S_VALUE + 8;
+   private static final int S_CHECK = S_KEY + 4;
+   private static final int SLOT_BYTES = S_CHECK + 4;
+   private static final int UNCHECKED_SLOT_BYTES = S_CHECK;
+   
+   private static final byte EMPTY = 0;
+   private static final byte FULL = 1;
+   private static final byte DELETED = 2;
+   
+   // Slots are mapped in segments, since one mapping is limited to 2GB
+   private static final int SEGMENT_SHIFT = 24;
+   private static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+   private static final int MIN_CAPACITY = 1024;
+   
+   // Outputs handed out by this pool belong to no real transaction
+   private static final Transaction OWNER = new Transaction();
+   
+   private final File file;
+   private final File keyFile;
+   private RandomAccessFile raf;
+   private FileChannel channel;
+   private MappedByteBuffer header;
+   private MappedByteBuffer[] segments;
+   private int mask;
+   private int count;
+   private int tombstones;
+   // SLOT_BYTES, or UNCHECKED_SLOT_BYTES while an older file is rewritten
+   private int slotBytes;
+   // The region table, null in older files, and the current number of FULL
+   // and DELETED slots of each region; a slot is in region slot >>> regionShift
+   private MappedByteBuffer regions;
+   private int[] regionFull;
+   private int[] regionDeleted;
+   private int regionShift;
+   // Slots dropped on open because they were torn by a crash
+   private int tornSlots;
+   
+   // Bumped whenever a UTXO is added or removed or the file is remapped, so
+   // that traversals can fail fast
+   private int modCount;
+   
+   // Addresses live in an append-only side file and are referenced by their
+   // position in it; only the distinct addresses are read back on open
+   private FileChannel keyChannel;
+   private ArrayList<RSAKey> keys;
+   private HashMap<BigInteger, ArrayList<Integer>> keyIds;
+   
+   // Sync policy: force the mapping to disk every syncEvery writes, or only on
+   // checkpoint() and close() when it is 0
+   private int syncEvery;
+   private int unsynced;
+   
+   // Set while a version 1 file is rewritten with amounts
+   private boolean legacyValues;
+   
+   // Opens the pool stored in <file>, creating it if it does not exist. Opening
+   // an existing pool reads its header, region table and address file, and
+   // never its slots, unless the pool was changed after its last checkpoint:
+   // then the slots of the regions changed since then are verified, torn
+   // slots are dropped and those regions are counted again.
+   public MappedUTXOPool(File file) throws IOException {
+      this(file, MIN_CAPACITY);
+   }
+   
+   // Same as above, creating the pool with room for <expected> UTXOs
+   public MappedUTXOPool(File file, int expected) throws IOException {
+      this.file = file;
+      this.keyFile = new File(file.getPath() + ".keys");
+      openKeys();
+      if (file.exists() && file.length() > 0) {
+         map();
+         int version = header.getInt(H_VERSION);
+         if (version == LEGACY_VERSION || version == UNCHECKED_VERSION) {
+            legacyValues = version == LEGACY_VERSION;
+            rebuild(mask + 1);
+         } else if (version == UNTRACKED_VERSION) {
+            upgrade();
+         } else if (header.getInt(H_CHECK) != headerChecksum(header, regions)) {
+            // the dirty regions cannot be trusted either
+            recover(true);
+         } else if (header.get(H_STATE) != CLEAN) {
+            recover(false);
+         }
+      } else {
+         int capacity = MIN_CAPACITY;
+         while (capacity * 3L / 4 < expected)
+            capacity <<= 1;
+         create(file, capacity);
+         map();
+      }
+   }
+   
+   // Makes every write from now on force the file to disk after <writes>
+   // writes; 1 syncs every write, 0 leaves syncing to checkpoint() and close()
+   public void setSyncEvery(int writes) {
+      if (writes < 0)
+         throw new IllegalArgumentException("writes must not be negative");
+      syncEvery = writes;
+   }
+   
+   // Forces all changes so far to disk, addresses before the slots that
+   // reference them, and the slots before the counts that describe them
+   public void checkpoint() throws IOException {
+      keyChannel.force(false);
+      for (MappedByteBuffer segment : segments)
+         segment.force();
+      if (regions != null) {
+         for (int region = 0; region < REGIONS; region++) {
+            regions.putInt(region * 8, regionFull[region]);
+            regions.putInt(region * 8 + 4, regionDeleted[region]);
+         }
+         regions.force();
+      }
+      header.putInt(H_COUNT, count);
+      header.putInt(H_TOMBSTONES, tombstones);
+      header.put(H_STATE, CLEAN);
+      for (int i = H_DIRTY; i < HEADER_BYTES; i++)
+         header.put(i, (byte) 0);
+      header.putInt(H_CHECK, headerChecksum(header, regions));
+      header.force();
+      unsynced = 0;
+   }
+   
+   // Returns the number of slots found torn, or referring to an address lost
+   // from the address file, and dropped when the pool was opened after a
+   // crash
+   public int getTornSlots() {
+      return tornSlots;
+   }
+   
+   // Checkpoints and releases the files; the pool must not be used afterwards
+   public void close() throws IOException {
+      checkpoint();
+      keyChannel.close();
+      channel.close();
+      raf.close();
+   }
+   
+   // Copies are made on the heap, as a CompactUTXOPool; hand this pool itself
+   // to new TxHandler(pool, true) to avoid the copy
+   public UTXOPool copy() {
+      return new CompactUTXOPool(this);
+   }
+   
+   // Stores the amount of <txOut>, so it throws ArithmeticException for an
+   // output whose value is not a valid amount
+   public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+      byte[] txHash = utxo.getTxHash();
+      if (txHash.length != HASH_BYTES)
+         throw new IllegalArgumentException("hashes must be " + HASH_BYTES + " bytes");
+      if (txOut == null)
+         throw new NullPointerException("outputs of a mapped pool must not be null");
+      int index = utxo.getIndex();
+      long amount = txOut.getAmount();
+      if (tracking())
+         adding(utxo, getTxOutput(utxo), txOut);
+      int keyId = keyId(txOut.address);
+      
+      int slot = find(txHash, index);
+      if (slot < 0 && (count + tombstones + 1) * 4L > (mask + 1L) * 3)
+         rebuild(count * 2L > mask ? (mask + 1) * 2 : mask + 1);
+      boolean isNew = slot < 0;
+      if (isNew) {
+         slot = slotFor(txHash, index);
+         while (state(slot) == FULL)
+            slot = (slot + 1) & mask;
+      }
+      markDirty(slot);
+      if (isNew) {
+         int region = slot >>> regionShift;
+         if (state(slot) == DELETED) {
+            setTombstones(tombstones - 1);
+            regionDeleted[region]--;
+         }
+         ByteBuffer seg = segment(slot);
+         int off = offset(slot);
+         for (int i = 0; i < HASH_BYTES; i++)
+            seg.put(off + S_HASH + i, txHash[i]);
+         seg.putInt(off + S_INDEX, index);
+         setCount(count + 1);
+         regionFull[region]++;
+      }
+      ByteBuffer seg = segment(slot);
+      int off = offset(slot);
+      seg.putLong(off + S_VALUE, amount);
+      seg.putInt(off + S_KEY, keyId);
+      seg.putInt(off + S_CHECK, checksum(seg, off));
+      seg.put(off + S_STATE, FULL);
+      written();
+   }
+   
+   public void removeUTXO(UTXO utxo) {
+      int slot = find(utxo.getTxHash(), utxo.getIndex());
+      if (slot < 0)
+         return;
+      if (tracking())
+         removing(utxo, getTxOutput(utxo));
+      markDirty(slot);
+      segment(slot).put(offset(slot) + S_STATE, DELETED);
+      setCount(count - 1);
+      setTombstones(tombstones + 1);
+      regionFull[slot >>> regionShift]--;
+      regionDeleted[slot >>> regionShift]++;
+      written();
+   }
+   
+   public Transaction.Output getTxOutput(UTXO ut) {
+      return getTxOutput(ut.getTxHash(), ut.getIndex());
+   }
+   
+   public boolean contains(UTXO utxo) {
+      return contains(utxo.getTxHash(), utxo.getIndex());
+   }
+   
+   // Returns a new Output read from the file; its address is shared between
+   // all outputs paid to the same key. A UTXO the filter rules out is not
+   // looked for in the file.
+   public Transaction.Output getTxOutput(byte[] txHash, int index) {
+      if (!mightContain(txHash, index))
+         return null;
+      int slot = find(txHash, index);
+      if (slot < 0) {
+         notFound();
+         return null;
+      }
+      return outputAt(slot);
+   }
+   
+   // Looks up the UTXO without allocating, asking the filter first
+   public boolean contains(byte[] txHash, int index) {
+      if (!mightContain(txHash, index))
+         return false;
+      if (find(txHash, index) < 0) {
+         notFound();
+         return false;
+      }
+      return true;
+   }
+   
+   public int size() {
+      return count;
+   }
+   
+   public ArrayList<UTXO> getAllUTXO() {
+      ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(count);
+      byte[] txHash = new byte[HASH_BYTES];
+      for (int slot = 0; slot <= mask; slot++) {
+         if (state(slot) != FULL)
+            continue;
+         ByteBuffer seg = segment(slot);
+         int off = offset(slot);
+         for (int i = 0; i < HASH_BYTES; i++)
+            txHash[i] = seg.get(off + S_HASH + i);
+         allUTXO.add(new UTXO(txHash, seg.getInt(off + S_INDEX)));
+      }
+      return allUTXO;
+   }
+   
+   // Walks the mapped slots in place, reading each UTXO and its output as it
+   // is reached; the slot range is split in half for parallel streams.
+   // Fail-fast.
+   public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+      return new Slots(0, mask + 1, modCount);
+   }
+   
+   // Slots [from, to) of the file as it was when the traversal started
+   private class Slots extends SlotSpliterator {
+      private final int expected;
+      private final byte[] txHash = new byte[HASH_BYTES];
+      
+      Slots(int from, int to, int expected) {
+         super(from, to);
+         this.expected = expected;
+      }
+      
+      protected Map.Entry<UTXO, Transaction.Output> entryAt(int slot) {
+         if (modCount != expected)
+            throw new ConcurrentModificationException();
+         if (state(slot) != FULL)
+            return null;
+         ByteBuffer seg = segment(slot);
+         int off = offset(slot);
+         for (int i = 0; i < HASH_BYTES; i++)
+            txHash[i] = seg.get(off + S_HASH + i);
+         return new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(
+               new UTXO(txHash, seg.getInt(off + S_INDEX)), outputAt(slot));
+      }
+      
+      protected SlotSpliterator split(int from, int to) {
+         return new Slots(from, to, expected);
+      }
+   }
+   
+   // Returns a new Output for the UTXO in <slot>
+   private Transaction.Output outputAt(int slot) {
+      ByteBuffer seg = segment(slot);
+      int off = offset(slot);
+      Transaction.Output txOut = OWNER.new Output(0, keys.get(seg.getInt(off + S_KEY)));
+      txOut.setAmount(seg.getLong(off + S_VALUE));
+      return txOut;
+   }
+   
+   // Returns the slot holding (txHash, index), or -1
+   private int find(byte[] txHash, int index) {
+      if (txHash == null || txHash.length != HASH_BYTES)
+         return -1;
+      int slot = slotFor(txHash, index);
+      for (;;) {
+         byte state = state(slot);
+         if (state == EMPTY)
+            return -1;
+         if (state == FULL && keyEquals(slot, txHash, index))
+            return slot;
+         slot = (slot + 1) & mask;
+      }
+   }
+   
+   private boolean keyEquals(int slot, byte[] txHash, int index) {
+      ByteBuffer seg = segment(slot);
+      int off = offset(slot);
+      if (seg.getInt(off + S_INDEX) != index)
+         return false;
+      for (int i = 0; i < HASH_BYTES; i++) {
+         if (seg.get(off + S_HASH + i) != txHash[i])
+            return false;
+      }
+      return true;
+   }
+   
+   private byte state(int slot) {
+      return segment(slot).get(offset(slot) + S_STATE);
+   }
+   
+   private ByteBuffer segment(int slot) {
+      return segments[slot >>> SEGMENT_SHIFT];
+   }
+   
+   private int offset(int slot) {
+      return (slot & (SEGMENT_SLOTS - 1)) * slotBytes;
+   }
+   
+   // CRC32 of the slot at <off> in <seg>, state byte and checksum excluded
+   private static int checksum(ByteBuffer seg, int off) {
+      ByteBuffer fields = seg.duplicate();
+      fields.limit(off + S_CHECK);
+      fields.position(off + S_HASH);
+      CRC32 crc = new CRC32();
+      crc.update(fields);
+      return (int) crc.getValue();
+   }
+   
+   // CRC32 of the header fields in <head> but the checksum, and of <table>
+   // unless it is null
+   private static int headerChecksum(ByteBuffer head, ByteBuffer table) {
+      CRC32 crc = new CRC32();
+      ByteBuffer fields = head.duplicate();
+      fields.limit(H_CHECK);
+      fields.position(0);
+      crc.update(fields);
+      fields.limit(HEADER_BYTES);
+      fields.position(H_CHECK + 4);
+      crc.update(fields);
+      if (table != null) {
+         fields = table.duplicate();
+         fields.clear();
+         crc.update(fields);
+      }
+      return (int) crc.getValue();
+   }
+   
+   // Hashes are already uniformly distributed, so a few of their bytes mixed
+   // with the index are enough to pick the home slot
+   private int slotFor(byte[] txHash, int index) {
+      int h = ((txHash[0] & 0xff) << 24) | ((txHash[1] & 0xff) << 16)
+         | ((txHash[2] & 0xff) << 8) | (txHash[3] & 0xff);
+      h ^= index * 0x9E3779B9;
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      return h & mask;
+   }
+   
+   private void setCount(int c) {
+      modCount++;
+      count = c;
+   }
+   
+   private void setTombstones(int t) {
+      tombstones = t;
+   }
+   
+   // Marks the region of <slot> DIRTY on disk before its first change since
+   // the last checkpoint reaches the mapping, so that a crash before the next
+   // one is noticed on open whichever pages the system had written back; at
+   // most REGIONS forces per checkpoint
+   private void markDirty(int slot) {
+      int region = slot >>> regionShift;
+      int at = H_DIRTY + (region >>> 3);
+      int bit = 1 << (region & 7);
+      byte bits = header.get(at);
+      if ((bits & bit) != 0)
+         return;
+      header.put(at, (byte) (bits | bit));
+      header.put(H_STATE, DIRTY);
+      header.putInt(H_CHECK, headerChecksum(header, regions));
+      header.force();
+   }
+   
+   // Verifies the slots of the regions marked dirty, or of every region if
+   // <all> is set: a FULL slot whose checksum does not match or whose address
+   // is not in the address file, or a slot in no known state, was being
+   // written when the process stopped and is dropped. The counts of the
+   // verified regions are then taken from their slots, and the others from
+   // the region table.
+   private void recover(boolean all) throws IOException {
+      int length = 1 << regionShift;
+      for (int region = 0; region < REGIONS; region++) {
+         if (!all && (header.get(H_DIRTY + (region >>> 3)) & (1 << (region & 7))) == 0)
+            continue;
+         int full = 0;
+         int deleted = 0;
+         for (int slot = region * length; slot < (region + 1) * length; slot++) {
+            ByteBuffer seg = segment(slot);
+            int off = offset(slot);
+            byte state = seg.get(off + S_STATE);
+            if ((state == FULL && (seg.getInt(off + S_CHECK) != checksum(seg, off)
+                                   || seg.getInt(off + S_KEY) < 0 || seg.getInt(off + S_KEY) >= keys.size()))
+                || (state != EMPTY && state != FULL && state != DELETED)) {
+               seg.put(off + S_STATE, DELETED);
+               state = DELETED;
+               tornSlots++;
+            }
+            if (state == FULL)
+               full++;
+            else if (state == DELETED)
+               deleted++;
+         }
+         regionFull[region] = full;
+         regionDeleted[region] = deleted;
+      }
+      int full = 0;
+      int deleted = 0;
+      for (int region = 0; region < REGIONS; region++) {
+         full += regionFull[region];
+         deleted += regionDeleted[region];
+      }
+      setCount(full);
+      setTombstones(deleted);
+      checkpoint();
+   }
+   
+   // Upgrades a version 3 file in place by appending the region table, which
+   // is filled by verifying every slot as after a crash
+   private void upgrade() throws IOException {
+      raf.setLength(HEADER_BYTES + (long) (mask + 1) * SLOT_BYTES + TABLE_BYTES);
+      header.putInt(H_VERSION, VERSION);
+      header.force();
+      channel.close();
+      raf.close();
+      map();
+      recover(true);
+   }
+   
+   private void written() {
+      if (syncEvery > 0 && ++unsynced >= syncEvery) {
+         try {
+            checkpoint();
+         } catch (IOException e) {
+            throw new RuntimeException(e);
+         }
+      }
+   }
+   
+   // Returns the id of <address> in the key file, appending it if it is new
+   private int keyId(RSAKey address) {
+      ArrayList<Integer> candidates = keyIds.get(address.getModulus());
+      if (candidates != null) {
+         for (int id : candidates) {
+            if (keys.get(id).getExponent().equals(address.getExponent()))
+               return id;
+         }
+      }
+      byte[] exponent = address.getExponent().toByteArray();
+      byte[] modulus = address.getModulus().toByteArray();
+      ByteBuffer record = ByteBuffer.allocate(8 + exponent.length + modulus.length);
+      record.putInt(exponent.length).put(exponent).putInt(modulus.length).put(modulus);
+      record.flip();
+      // forced by the next checkpoint, before the slots that refer to its id;
+      // a slot whose key was lost in a crash is dropped on open
+      try {
+         while (record.hasRemaining())
+            keyChannel.write(record, keyChannel.size());
+      } catch (IOException e) {
+         throw new RuntimeException(e);
+      }
+      return register(AddressTable.intern(address));
+   }
+   
+   private int register(RSAKey address) {
+      int id = keys.size();
+      keys.add(address);
+      ArrayList<Integer> ids = keyIds.get(address.getModulus());
+      if (ids == null) {
+         ids = new ArrayList<Integer>(1);
+         keyIds.put(address.getModulus(), ids);
+      }
+      ids.add(id);
+      return id;
+   }
+   
+   // Reads the address file, dropping a record torn by a crash during append
+   private void openKeys() throws IOException {
+      keyChannel = new RandomAccessFile(keyFile, "rw").getChannel();
+      keys = new ArrayList<RSAKey>();
+      keyIds = new HashMap<BigInteger, ArrayList<Integer>>();
+      ByteBuffer all = keyChannel.map(FileChannel.MapMode.READ_ONLY, 0, keyChannel.size());
+      int complete = 0;
+      while (all.remaining() >= 4) {
+         int expLen = all.getInt();
+         if (expLen <= 0 || all.remaining() < expLen + 4)
+            break;
+         byte[] exponent = new byte[expLen];
+         all.get(exponent);
+         int modLen = all.getInt();
+         if (modLen <= 0 || all.remaining() < modLen)
+            break;
+         byte[] modulus = new byte[modLen];
+         all.get(modulus);
+         register(AddressTable.intern(new BigInteger(exponent), new BigInteger(modulus)));
+         complete = all.position();
+      }
+      keyChannel.truncate(complete);
+   }
+   
+   private static void create(File target, int capacity) throws IOException {
+      ByteBuffer fields = ByteBuffer.allocate(HEADER_BYTES);
+      fields.putInt(MAGIC).putInt(VERSION).putInt(capacity).putInt(0).putInt(0).put(CLEAN);
+      fields.putInt(H_CHECK, headerChecksum(fields, ByteBuffer.allocate(TABLE_BYTES)));
+      RandomAccessFile f = new RandomAccessFile(target, "rw");
+      try {
+         f.setLength(HEADER_BYTES + (long) capacity * SLOT_BYTES + TABLE_BYTES);
+         f.write(fields.array());
+      } finally {
+         f.close();
+      }
+   }
+   
+   private void map() throws IOException {
+      raf = new RandomAccessFile(file, "rw");
+      channel = raf.getChannel();
+      header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+      int version = header.getInt(H_VERSION);
+      int capacity = header.getInt(H_CAPACITY);
+      slotBytes = version >= UNTRACKED_VERSION ? SLOT_BYTES : UNCHECKED_SLOT_BYTES;
+      long slotsEnd = HEADER_BYTES + (long) capacity * slotBytes;
+      if (header.getInt(H_MAGIC) != MAGIC || version < LEGACY_VERSION || version > VERSION
+          || capacity < MIN_CAPACITY || Integer.bitCount(capacity) != 1
+          || raf.length() < slotsEnd + (version == VERSION ? TABLE_BYTES : 0))
+         throw new IOException(file + " is not a UTXO pool file");
+      count = header.getInt(H_COUNT);
+      tombstones = header.getInt(H_TOMBSTONES);
+      regionShift = Integer.numberOfTrailingZeros(capacity) - Integer.numberOfTrailingZeros(REGIONS);
+      regionFull = new int[REGIONS];
+      regionDeleted = new int[REGIONS];
+      regions = null;
+      if (version == VERSION) {
+         regions = channel.map(FileChannel.MapMode.READ_WRITE, slotsEnd, TABLE_BYTES);
+         for (int region = 0; region < REGIONS; region++) {
+            regionFull[region] = regions.getInt(region * 8);
+            regionDeleted[region] = regions.getInt(region * 8 + 4);
+         }
+      }
+      mask = capacity - 1;
+      modCount++;
+      int n = Math.max(1, capacity / SEGMENT_SLOTS);
+      segments = new MappedByteBuffer[n];
+      for (int i = 0; i < n; i++) {
+         long slots = Math.min(capacity, SEGMENT_SLOTS);
+         segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                   HEADER_BYTES + (long) i * SEGMENT_SLOTS * slotBytes, slots * slotBytes);
+      }
+   }
+   
+   // Rehashes every live slot into a new file of <capacity> slots, dropping
+   // tombstones, and swaps it in for the current one
+   private void rebuild(int capacity) {
+      try {
+         checkpoint();
+         File tmp = new File(file.getPath() + ".tmp");
+         create(tmp, capacity);
+         MappedUTXOPool target = new MappedUTXOPool(tmp, keyFile, keys, keyIds, keyChannel);
+         for (int slot = 0; slot <= mask; slot++) {
+            if (state(slot) != FULL)
+               continue;
+            ByteBuffer seg = segment(slot);
+            int off = offset(slot);
+            byte[] txHash = new byte[HASH_BYTES];
+            for (int i = 0; i < HASH_BYTES; i++)
+               txHash[i] = seg.get(off + S_HASH + i);
+            long amount = seg.getLong(off + S_VALUE);
+            if (legacyValues)
+               amount = Transaction.toAmount(Double.longBitsToDouble(amount));
+            target.copySlot(txHash, seg.getInt(off + S_INDEX), amount, seg.getInt(off + S_KEY));
+         }
+         target.checkpoint();
+         target.channel.close();
+         target.raf.close();
+         channel.close();
+         raf.close();
+         Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         map();
+         legacyValues = false;
+      } catch (IOException e) {
+         throw new RuntimeException(e);
+      }
+   }
+   
+   // Opens the table in <tmp> sharing this pool's addresses, for rebuild()
+   private MappedUTXOPool(File tmp, File keyFile, ArrayList<RSAKey> keys,
+                          HashMap<BigInteger, ArrayList<Integer>> keyIds, FileChannel keyChannel) throws IOException {
+      this.file = tmp;
+      this.keyFile = keyFile;
+      this.keys = keys;
+      this.keyIds = keyIds;
+      this.keyChannel = keyChannel;
+      map();
+   }
+   
+   private void copySlot(byte[] txHash, int index, long amount, int keyId) {
+      int slot = slotFor(txHash, index);
+      while (state(slot) != EMPTY)
+         slot = (slot + 1) & mask;
+      ByteBuffer seg = segment(slot);
+      int off = offset(slot);
+      for (int i = 0; i < HASH_BYTES; i++)
+         seg.put(off + S_HASH + i, txHash[i]);
+      seg.putInt(off + S_INDEX, index);
+      seg.putLong(off + S_VALUE, amount);
+      seg.putInt(off + S_KEY, keyId);
+      seg.putInt(off + S_CHECK, checksum(seg, off));
+      seg.put(off + S_STATE, FULL);
+      setCount(count + 1);
+      regionFull[slot >>> regionShift]++;
+   }
+}
@@ -0,0 +1,448 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/* A TxHandler whose handleTxs accepts, out of each epoch, a mutually valid set
+ * of transactions with the greatest total fee it can find within a time
+ * budget. The epoch is split into independent components (transactions linked
+ * by a spent output or by spending each other's outputs), and each component
+ * is solved exactly by branch and bound over bitsets, starting from a greedy
+ * fee-rate selection that is kept if the budget runs out. A transaction is
+ * only ever selected together with all of its in-epoch parents.
+ */
+public class MaxFeeTxHandler extends TxHandler {
+
+    public static final long DEFAULT_TIME_BUDGET_NANOS = 50L * 1000 * 1000;
+
+    // larger components are only solved greedily, since the exact search
+    // recurses once per transaction
+    private static final int MAX_EXACT_SIZE = 4096;
+
+    private long timeBudgetNanos = DEFAULT_TIME_BUDGET_NANOS;
+
+    public MaxFeeTxHandler(UTXOPool utxoPool) {
+        super(utxoPool);
+    }
+
+    /* Takes over utxoPool instead of copying it if <adopt> is set, as in
+     * TxHandler.
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, boolean adopt) {
+        super(utxoPool, adopt);
+    }
+
+    /* Bounds the time handleTxs spends searching for better sets; the greedy
+     * selection is always completed.
+     */
+    public void setTimeBudget(long nanos) {
+        if (nanos < 0) throw new IllegalArgumentException("budget must not be negative");
+        timeBudgetNanos = nanos;
+    }
+
+    public long getTimeBudget() {
+        return timeBudgetNanos;
+    }
+
+    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        long deadline = System.nanoTime() + timeBudgetNanos;
+        Candidates c = new Candidates(possibleTxs);
+
+        boolean[] chosen = new boolean[c.order.length];
+        for (int[] component : c.components()) {
+            new Component(c, component).select(deadline, chosen);
+        }
+
+        ArrayList<Transaction> selected = new ArrayList<Transaction>();
+        for (int i = 0; i < c.order.length; i++) {
+            if (chosen[i]) selected.add(c.order[i]);
+        }
+
+        // the selected set is mutually valid in this order; the regular pass
+        // applies it and double-checks it
+        return super.handleTxs(selected.toArray(new Transaction[selected.size()]));
+    }
+
+    // the transactions of an epoch that are valid on their own, given their
+    // in-epoch parents, in an order that puts parents first
+    private class Candidates {
+        Transaction[] order;
+        long[] fee;
+        int[] size;
+        int[][] parents;
+
+        Candidates(Transaction[] possibleTxs) {
+            // one candidate per distinct hash
+            HashMap<ByteBuffer, Integer> byHash = new HashMap<ByteBuffer, Integer>();
+            ArrayList<Transaction> txs = new ArrayList<Transaction>();
+            for (Transaction tx : possibleTxs) {
+                if (tx.getHash() == null) continue;
+                ByteBuffer key = ByteBuffer.wrap(tx.getHash());
+                if (byHash.containsKey(key)) continue;
+                byHash.put(key, txs.size());
+                txs.add(tx);
+            }
+
+            int n = txs.size();
+            HashMap<UTXO, Integer> producer = new HashMap<UTXO, Integer>();
+            for (int i = 0; i < n; i++) {
+                Transaction tx = txs.get(i);
+                for (int j = 0; j < tx.numOutputs(); j++) {
+                    producer.put(new UTXO(tx.getHash(), j), i);
+                }
+            }
+
+            boolean[] valid = new boolean[n];
+            long[] txFee = new long[n];
+            int[][] txParents = new int[n][];
+            for (int i = 0; i < n; i++) {
+                try {
+                    valid[i] = resolve(txs, i, producer, txFee, txParents);
+                } catch (ArithmeticException e) {
+                    // an amount that is not finite or a sum that overflows
+                    valid[i] = false;
+                }
+            }
+
+            // Kahn's algorithm over the valid transactions; those with an
+            // invalid ancestor or on a cycle never become ready
+            int[] waiting = new int[n];
+            ArrayList<ArrayList<Integer>> children = new ArrayList<ArrayList<Integer>>();
+            for (int i = 0; i < n; i++) children.add(new ArrayList<Integer>());
+            ArrayDeque<Integer> ready = new ArrayDeque<Integer>();
+            for (int i = 0; i < n; i++) {
+                if (!valid[i]) continue;
+                waiting[i] = txParents[i].length;
+                for (int p : txParents[i]) children.get(p).add(i);
+                if (waiting[i] == 0) ready.add(i);
+            }
+            ArrayList<Integer> topo = new ArrayList<Integer>();
+            while (!ready.isEmpty()) {
+                int i = ready.poll();
+                topo.add(i);
+                for (int child : children.get(i)) {
+                    if (valid[child] && --waiting[child] == 0) ready.add(child);
+                }
+            }
+
+            int m = topo.size();
+            int[] position = new int[n];
+            Arrays.fill(position, -1);
+            for (int k = 0; k < m; k++) position[topo.get(k)] = k;
+            order = new Transaction[m];
+            fee = new long[m];
+            size = new int[m];
+            parents = new int[m][];
+            for (int k = 0; k < m; k++) {
+                int i = topo.get(k);
+                order[k] = txs.get(i);
+                fee[k] = txFee[i];
+                size[k] = Math.max(1, order[k].getRawTx().length);
+                parents[k] = new int[txParents[i].length];
+                for (int j = 0; j < txParents[i].length; j++) {
+                    parents[k][j] = position[txParents[i][j]];
+                }
+            }
+        }
+
+        // checks tx i against the pool and the outputs of the epoch, recording
+        // its fee and its distinct in-epoch parents
+        private boolean resolve(ArrayList<Transaction> txs, int i, HashMap<UTXO, Integer> producer,
+                                long[] txFee, int[][] txParents) {
+            Transaction tx = txs.get(i);
+            HashSet<UTXO> claimed = new HashSet<UTXO>();
+            LinkedHashSet<Integer> from = new LinkedHashSet<Integer>();
+            long in = 0;
+            for (int j = 0; j < tx.numInputs(); j++) {
+                Transaction.Input input = tx.input(j);
+                if (input.prevTxHash == null || input.signature == null) return false;
+                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+                if (!claimed.add(utxo)) return false;
+                Transaction.Output out = pool.getTxOutput(input.prevTxHash, input.outputIndex);
+                if (out == null) {
+                    Integer p = producer.get(utxo);
+                    if (p == null) return false;
+                    out = txs.get(p).output(input.outputIndex);
+                    from.add(p);
+                }
+                if (!verify(tx, j, out.address)) return false;
+                in = Math.addExact(in, out.getAmount());
+            }
+
+            if (checkOutputs(tx) != null) return false;
+            long out = 0;
+            for (int j = 0; j < tx.numOutputs(); j++) {
+                out = Math.addExact(out, tx.amount(j));
+            }
+            if (in < out) return false;
+
+            txFee[i] = in - out;
+            txParents[i] = new int[from.size()];
+            int k = 0;
+            for (int p : from) txParents[i][k++] = p;
+            return true;
+        }
+
+        private boolean verify(Transaction tx, int index, RSAKey address) {
+            SignatureCache cache = getSignatureCache();
+            if (cache != null) return cache.verify(tx, index, address);
+            return SignatureVerifier.verify(address, tx.getRawDataToSign(index), tx.input(index).signature);
+        }
+
+        // groups of candidates (positions, ascending) linked by a conflict or
+        // a dependency, smallest first
+        List<int[]> components() {
+            int m = order.length;
+            int[] root = new int[m];
+            for (int k = 0; k < m; k++) root[k] = k;
+            for (int k = 0; k < m; k++) {
+                for (int p : parents[k]) TxHandlerUtil.union(root, k, p);
+            }
+            IdentityHashMap<Transaction, Integer> position = new IdentityHashMap<Transaction, Integer>();
+            for (int k = 0; k < m; k++) position.put(order[k], k);
+            for (Map.Entry<Transaction, HashSet<Transaction>> e : TxHandlerUtil.findConflicts(order).entrySet()) {
+                for (Transaction other : e.getValue()) TxHandlerUtil.union(root, position.get(e.getKey()), position.get(other));
+            }
+
+            HashMap<Integer, ArrayList<Integer>> groups = new HashMap<Integer, ArrayList<Integer>>();
+            for (int k = 0; k < m; k++) {
+                int r = TxHandlerUtil.find(root, k);
+                if (!groups.containsKey(r)) groups.put(r, new ArrayList<Integer>());
+                groups.get(r).add(k);
+            }
+            ArrayList<int[]> result = new ArrayList<int[]>();
+            for (ArrayList<Integer> g : groups.values()) {
+                int[] members = new int[g.size()];
+                for (int j = 0; j < members.length; j++) members[j] = g.get(j);
+                result.add(members);
+            }
+            Collections.sort(result, new Comparator<int[]>() {
+                public int compare(int[] a, int[] b) {
+                    return Integer.compare(a.length, b.length);
+                }
+            });
+            return result;
+        }
+    }
+
+    // one component, renumbered 0..n-1 in parent-first order, with its
+    // conflicts as bitsets
+    private static class Component {
+        final Candidates c;
+        final int[] members;
+        final int n;
+        final int words;
+        final long[] fee;
+        final int[][] parents;
+        final long[][] conflicts;
+
+        // for the search bound: every transaction is put in the group of the
+        // first output it spends, and a valid set takes at most one per group
+        final int[] group;
+        final int numGroups;
+
+        long bestFee = -1;
+        long[] best;
+        long nodes;
+        boolean timedOut;
+        long deadline;
+        long[][] blockedAt;
+
+        Component(Candidates c, int[] members) {
+            this.c = c;
+            this.members = members;
+            n = members.length;
+            words = (n + 63) >>> 6;
+            HashMap<Integer, Integer> local = new HashMap<Integer, Integer>();
+            for (int t = 0; t < n; t++) local.put(members[t], t);
+
+            fee = new long[n];
+            parents = new int[n][];
+            for (int t = 0; t < n; t++) {
+                fee[t] = c.fee[members[t]];
+                int[] p = c.parents[members[t]];
+                parents[t] = new int[p.length];
+                for (int j = 0; j < p.length; j++) parents[t][j] = local.get(p[j]);
+            }
+
+            HashMap<UTXO, ArrayList<Integer>> spenders = new HashMap<UTXO, ArrayList<Integer>>();
+            group = new int[n];
+            HashMap<UTXO, Integer> groupOf = new HashMap<UTXO, Integer>();
+            int groups = 0;
+            for (int t = 0; t < n; t++) {
+                Transaction tx = c.order[members[t]];
+                group[t] = -1;
+                for (Transaction.Input input : tx.getInputs()) {
+                    UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+                    if (!spenders.containsKey(utxo)) spenders.put(utxo, new ArrayList<Integer>());
+                    spenders.get(utxo).add(t);
+                    if (group[t] < 0) {
+                        Integer g = groupOf.get(utxo);
+                        if (g == null) {
+                            g = groups++;
+                            groupOf.put(utxo, g);
+                        }
+                        group[t] = g;
+                    }
+                }
+                if (group[t] < 0) group[t] = groups++;
+            }
+            numGroups = groups;
+
+            conflicts = new long[n][words];
+            for (ArrayList<Integer> s : spenders.values()) {
+                for (int a : s) {
+                    for (int b : s) {
+                        if (a != b) set(conflicts[a], b);
+                    }
+                }
+            }
+        }
+
+        void select(long deadline, boolean[] chosen) {
+            this.deadline = deadline;
+            best = greedy();
+            bestFee = totalFee(best);
+            if (n <= MAX_EXACT_SIZE && System.nanoTime() < deadline) {
+                blockedAt = new long[n + 1][];
+                blockedAt[0] = new long[words];
+                search(0, 0, new long[words], new long[words], new int[numGroups], new long[numGroups]);
+            }
+            for (int t = 0; t < n; t++) {
+                if (get(best, t)) chosen[members[t]] = true;
+            }
+        }
+
+        // takes transactions by decreasing fee rate, each together with the
+        // ancestors it needs, whenever that package fits the current set
+        private long[] greedy() {
+            Integer[] byRate = new Integer[n];
+            for (int t = 0; t < n; t++) byRate[t] = t;
+            Arrays.sort(byRate, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Double.compare((double) fee[b] / c.size[members[b]], (double) fee[a] / c.size[members[a]]);
+                }
+            });
+
+            long[] included = new long[words];
+            long[] blocked = new long[words];
+            for (int t : byRate) {
+                if (get(included, t)) continue;
+                ArrayList<Integer> pkg = new ArrayList<Integer>();
+                long[] inPkg = new long[words];
+                ArrayDeque<Integer> todo = new ArrayDeque<Integer>();
+                todo.add(t);
+                set(inPkg, t);
+                boolean fits = true;
+                while (!todo.isEmpty() && fits) {
+                    int u = todo.poll();
+                    if (get(blocked, u)) fits = false;
+                    pkg.add(u);
+                    for (int p : parents[u]) {
+                        if (!get(included, p) && !get(inPkg, p)) {
+                            set(inPkg, p);
+                            todo.add(p);
+                        }
+                    }
+                }
+                for (int i = 0; fits && i < pkg.size(); i++) {
+                    if (intersects(conflicts[pkg.get(i)], inPkg)) fits = false;
+                }
+                if (!fits) continue;
+                for (int u : pkg) {
+                    set(included, u);
+                    or(blocked, conflicts[u]);
+                }
+            }
+            return included;
+        }
+
+        // decides transaction k: include it if it can be, then exclude it
+        private void search(int k, long total, long[] included, long[] excluded,
+                            int[] touched, long[] groupMax) {
+            if ((++nodes & 1023) == 0 && System.nanoTime() > deadline) timedOut = true;
+            if (timedOut) return;
+            if (k == n) {
+                if (total > bestFee) {
+                    bestFee = total;
+                    best = included.clone();
+                }
+                return;
+            }
+            long[] blocked = blockedAt[k];
+            if (total + bound(k, blocked, excluded, touched, groupMax) <= bestFee) return;
+
+            boolean canInclude = !get(blocked, k);
+            for (int p : parents[k]) {
+                if (!get(included, p)) canInclude = false;
+            }
+            if (canInclude) {
+                long[] next = blockedAt[k + 1];
+                if (next == null) next = blockedAt[k + 1] = new long[words];
+                for (int w = 0; w < words; w++) next[w] = blocked[w] | conflicts[k][w];
+                set(included, k);
+                search(k + 1, total + fee[k], included, excluded, touched, groupMax);
+                clear(included, k);
+            }
+
+            long[] next = blockedAt[k + 1];
+            if (next == null) next = blockedAt[k + 1] = new long[words];
+            System.arraycopy(blocked, 0, next, 0, words);
+            set(excluded, k);
+            search(k + 1, total, included, excluded, touched, groupMax);
+            clear(excluded, k);
+        }
+
+        // the most the undecided transactions could still add: the best fee
+        // in each group among those not already ruled out
+        private long bound(int k, long[] blocked, long[] excluded, int[] touched, long[] groupMax) {
+            int used = 0;
+            for (int t = k; t < n; t++) {
+                if (get(blocked, t)) continue;
+                boolean possible = true;
+                for (int p : parents[t]) {
+                    if (get(excluded, p) || get(blocked, p)) possible = false;
+                }
+                if (!possible) continue;
+                int g = group[t];
+                if (groupMax[g] == 0 && fee[t] > 0) touched[used++] = g;
+                if (fee[t] > groupMax[g]) groupMax[g] = fee[t];
+            }
+            long sum = 0;
+            for (int i = 0; i < used; i++) {
+                sum += groupMax[touched[i]];
+                groupMax[touched[i]] = 0;
+            }
+            return sum;
+        }
+
+        private long totalFee(long[] set) {
+            long total = 0;
+            for (int t = 0; t < n; t++) {
+                if (get(set, t)) total += fee[t];
+            }
+            return total;
+        }
+    }
+
+    private static boolean get(long[] bits, int i) {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private static void set(long[] bits, int i) {
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    private static void clear(long[] bits, int i) {
+        bits[i >>> 6] &= ~(1L << i);
+    }
+
+    private static void or(long[] bits, long[] other) {
+        for (int w = 0; w < bits.length; w++) bits[w] |= other[w];
+    }
+
+    private static boolean intersects(long[] a, long[] b) {
+        for (int w = 0; w < a.length; w++) {
+            if ((a[w] & b[w]) != 0) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,14 @@
+/* 
+ * RejectReason.java
+ * 
+ * The reasons for which a transaction can fail validation
+ */
+
+public enum RejectReason {
+   MISSING_UTXO,       // an input claims an output that is not in the pool
+   BAD_SIGNATURE,      // an input's signature does not verify
+   DOUBLE_CLAIM,       // two inputs claim the same output
+   NEGATIVE_OUTPUT,    // an output value is negative
+   INSUFFICIENT_FEE,   // the outputs pay out more than the inputs bring in
+   INVALID_AMOUNT      // a value is not a whole number of base units, or a sum overflows
+}
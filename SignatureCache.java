@@ -0,0 +1,179 @@
+/* 
+ * SignatureCache.java
+ * 
+ * This class represents a bounded cache of signature check results, keyed by
+ * the hash of the signed transaction, the input index and the public key
+ */
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SignatureCache {
+
+   // Default number of results kept by a cache
+   public static final int DEFAULT_CAPACITY = 1 << 16;
+
+   private final int capacity;
+   private final LinkedHashMap<Key, Boolean> results;
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+
+   // Creates a cache holding at most DEFAULT_CAPACITY results
+   public SignatureCache() {
+      this(DEFAULT_CAPACITY);
+   }
+
+   // Creates a cache holding at most <capacity> results, evicting the least
+   // recently used one when full
+   public SignatureCache(int capacity) {
+      if (capacity <= 0)
+         throw new IllegalArgumentException("capacity must be positive");
+      this.capacity = capacity;
+      results = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > SignatureCache.this.capacity;
+         }
+      };
+   }
+
+   // Returns whether the signature on input <index> of <tx> is valid under
+   // <address>, running the RSA check only if no result is cached. Transactions
+   // without a hash are checked but not cached.
+   public boolean verify(Transaction tx, int index, RSAKey address) {
+      return verify(tx, index, address, TxMetrics.NONE);
+   }
+
+   // Same as above, reporting the serialization and RSA time of a miss to
+   // <metrics>
+   public boolean verify(Transaction tx, int index, RSAKey address, TxMetrics metrics) {
+      Boolean cached = lookup(tx, index, address);
+      if (cached != null)
+         return cached;
+      boolean ok = verifyNow(tx, index, address, metrics);
+      store(tx, index, address, ok);
+      return ok;
+   }
+
+   // Returns the cached result for input <index> of <tx> under <address>, or
+   // null, counting a miss, if there is none
+   Boolean lookup(Transaction tx, int index, RSAKey address) {
+      Boolean cached = peek(tx, index, address);
+      if (cached != null)
+         hits.incrementAndGet();
+      else
+         misses.incrementAndGet();
+      return cached;
+   }
+
+   // Same as lookup, without counting a hit or a miss
+   Boolean peek(Transaction tx, int index, RSAKey address) {
+      byte[] sig = tx.input(index).signature;
+      byte[] hash = tx.getHash();
+      if (hash == null || sig == null)
+         return null;
+      Key key = new Key(hash, index, address, sig);
+      synchronized (results) {
+         return results.get(key);
+      }
+   }
+
+   // Caches <ok> as the result for input <index> of <tx> under <address>
+   void store(Transaction tx, int index, RSAKey address, boolean ok) {
+      byte[] sig = tx.input(index).signature;
+      byte[] hash = tx.getHash();
+      if (hash == null || sig == null)
+         return;
+      Key key = new Key(hash, index, address, sig).detach();
+      synchronized (results) {
+         results.put(key, ok);
+      }
+   }
+
+   // Runs the RSA check on input <index> of <tx> without any caching, timing
+   // the serialization and the check separately when <metrics> is enabled
+   static boolean verifyNow(Transaction tx, int index, RSAKey address, TxMetrics metrics) {
+      byte[] sig = tx.input(index).signature;
+      if (!metrics.isEnabled())
+         return SignatureVerifier.verify(address, tx.rawDataToSign(index), sig);
+
+      long start = System.nanoTime();
+      byte[] msg = tx.rawDataToSign(index);
+      long serialized = System.nanoTime();
+      boolean ok = SignatureVerifier.verify(address, msg, sig);
+      long end = System.nanoTime();
+      metrics.rawDataSerialized(serialized - start);
+      metrics.signatureVerified(end - serialized);
+      return ok;
+   }
+
+   // Returns the number of checks answered from the cache
+   public long getHits() {
+      return hits.get();
+   }
+
+   // Returns the number of checks that ran the RSA verification
+   public long getMisses() {
+      return misses.get();
+   }
+
+   // Returns the number of results currently cached
+   public int size() {
+      synchronized (results) {
+         return results.size();
+      }
+   }
+
+   // Drops all cached results; the hit and miss counters are kept
+   public void clear() {
+      synchronized (results) {
+         results.clear();
+      }
+   }
+
+   // The signature is part of the key so that an entry never vouches for a
+   // different signature filed under the same transaction hash
+   private static class Key {
+      private byte[] txHash;
+      private final int index;
+      private final BigInteger exponent;
+      private final BigInteger modulus;
+      private byte[] signature;
+      private final int hashCode;
+
+      Key(byte[] txHash, int index, RSAKey address, byte[] signature) {
+         this.txHash = txHash;
+         this.index = index;
+         this.exponent = address.getExponent();
+         this.modulus = address.getModulus();
+         this.signature = signature;
+         int h = Arrays.hashCode(txHash);
+         h = h * 31 + index;
+         h = h * 31 + modulus.hashCode();
+         hashCode = h;
+      }
+
+      // Copies the caller's arrays before the key is stored
+      Key detach() {
+         txHash = txHash.clone();
+         signature = signature.clone();
+         return this;
+      }
+
+      public boolean equals(Object other) {
+         if (!(other instanceof Key))
+            return false;
+         Key k = (Key) other;
+         return index == k.index && hashCode == k.hashCode
+            && Arrays.equals(txHash, k.txHash)
+            && modulus.equals(k.modulus) && exponent.equals(k.exponent)
+            && Arrays.equals(signature, k.signature);
+      }
+
+      public int hashCode() {
+         return hashCode;
+      }
+   }
+}
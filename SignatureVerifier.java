@@ -0,0 +1,328 @@
+/*
+ * SignatureVerifier.java
+ *
+ * This class represents a faster drop-in for RSAKey.verifySignature that
+ * returns exactly the same results, plus a batch of checks that are grouped
+ * by key, deduplicated and run in parallel
+ */
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class SignatureVerifier {
+
+   // RSAKey signs the HMAC-SHA256 of the message under a PRF keyed with zeros,
+   // padded as [1][masked plaintext and zeros][masked seed]. Removing the
+   // padding runs a PRGen, and every 4 bytes a PRGen produces build a new PRF,
+   // which derives its HMAC key through a fresh SHA1PRNG. That key schedule,
+   // not the modPow with exponent 65537, is most of the cost of a check. This
+   // class derives the same keys with a reused SHA-1 digest and HMAC instance
+   // per thread.
+
+   private static final int KEY_BYTES = 32;
+   private static final int SEED_BYTES = 16;
+   private static final int ZERO_BYTES = 16;
+   private static final int PAD_BYTES = SEED_BYTES + ZERO_BYTES + 2;
+   private static final int SHA1_BYTES = 20;
+   private static final byte[] OUTPUT_LABEL = { 0 };
+   private static final byte[] NEXT_KEY_LABEL = { 1 };
+
+   // Whether the derivation below reproduces PRF on this JVM; if it does not,
+   // every check is delegated to RSAKey
+   private static final boolean EXACT;
+
+   // HMAC key of the PRF RSAKey hashes messages with
+   private static final SecretKeySpec MESSAGE_KEY;
+
+   private static final ThreadLocal<Engine> ENGINE = new ThreadLocal<Engine>() {
+      protected Engine initialValue() {
+         return new Engine();
+      }
+   };
+
+   static {
+      SecretKeySpec messageKey = null;
+      boolean exact = false;
+      try {
+         Engine engine = new Engine();
+         messageKey = engine.deriveKey(new byte[KEY_BYTES]);
+         exact = true;
+         byte[] probe = { 3, 1, 4, 1, 5, 9, 2, 6 };
+         for (int i = 0; i < 4 && exact; i++) {
+            byte[] seed = new byte[KEY_BYTES];
+            Arrays.fill(seed, (byte) (i * 37 + 11));
+            seed[i] = (byte) i;
+            engine.mac.init(engine.deriveKey(seed));
+            exact = Arrays.equals(engine.mac.doFinal(probe), new PRF(seed).eval(probe));
+         }
+      } catch (GeneralSecurityException e) {
+         exact = false;
+      } catch (RuntimeException e) {
+         exact = false;
+      }
+      EXACT = exact;
+      MESSAGE_KEY = messageKey;
+   }
+
+   // Returns address.verifySignature(message, signature), computed without
+   // building a PRF per 4 bytes of padding. Inputs RSAKey would throw on are
+   // handed to it so that the same exception is thrown.
+   public static boolean verify(RSAKey address, byte[] message, byte[] signature) {
+      if (!EXACT || message == null || signature == null)
+         return address.verifySignature(message, signature);
+      int plaintext = (address.getModulus().bitLength() - 1) / 8 - PAD_BYTES;
+      if (plaintext < KEY_BYTES)
+         return address.verifySignature(message, signature);
+
+      Engine engine = ENGINE.get();
+      byte[] padded = new BigInteger(1, signature).modPow(address.getExponent(), address.getModulus()).toByteArray();
+      if (padded.length != plaintext + PAD_BYTES)
+         return false;
+
+      // undo the mask on the seed, then the mask on the plaintext
+      int maskedLength = padded.length - 1 - SEED_BYTES;
+      byte[] seedMask = engine.hash(padded, 1, maskedLength);
+      byte[] seed = new byte[KEY_BYTES];
+      for (int i = 0; i < SEED_BYTES; i++)
+         seed[i] = (byte) (seedMask[i] ^ padded[1 + maskedLength + i]);
+      byte[] p = engine.generate(seed, maskedLength);
+      for (int i = 0; i < maskedLength; i++)
+         p[i] ^= padded[1 + i];
+      for (int i = maskedLength - ZERO_BYTES; i < maskedLength; i++) {
+         if (p[i] != 0)
+            return false;
+      }
+
+      // the plaintext is followed by a non-zero marker byte; RSAKey throws
+      // when there is no plaintext before it, so let it
+      int marker = maskedLength - ZERO_BYTES - 1;
+      while (marker > 0 && p[marker] == 0)
+         marker--;
+      if (marker <= 0)
+         return address.verifySignature(message, signature);
+
+      byte[] digest = engine.hash(message, 0, message.length);
+      if (marker != digest.length)
+         return false;
+      for (int i = 0; i < marker; i++) {
+         if (p[i] != digest[i])
+            return false;
+      }
+      return true;
+   }
+
+   // Per-thread digests, reused across checks
+   private static class Engine {
+      final MessageDigest sha1;
+      final Mac mac;
+      final Mac messageMac;
+
+      Engine() {
+         try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+            mac = Mac.getInstance("HmacSHA256");
+            messageMac = Mac.getInstance("HmacSHA256");
+            if (MESSAGE_KEY != null)
+               messageMac.init(MESSAGE_KEY);
+         } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+         }
+      }
+
+      // The HMAC key PRF derives from <seed>: the first 32 bytes a SHA1PRNG
+      // seeded with only <seed> produces
+      SecretKeySpec deriveKey(byte[] seed) {
+         byte[] state = sha1.digest(seed);
+         byte[] key = new byte[KEY_BYTES];
+         for (int pos = 0; pos < KEY_BYTES; pos += SHA1_BYTES) {
+            byte[] output = sha1.digest(state);
+            int last = 1;
+            boolean changed = false;
+            for (int i = 0; i < state.length; i++) {
+               int v = state[i] + output[i] + last;
+               byte t = (byte) v;
+               changed |= state[i] != t;
+               state[i] = t;
+               last = v >> 8;
+            }
+            if (!changed)
+               state[0]++;
+            System.arraycopy(output, 0, key, pos, Math.min(SHA1_BYTES, KEY_BYTES - pos));
+         }
+         return new SecretKeySpec(key, "HmacSHA256");
+      }
+
+      // The PRF RSAKey hashes with, over <length> bytes of <data> at <offset>
+      byte[] hash(byte[] data, int offset, int length) {
+         messageMac.update(data, offset, length);
+         return messageMac.doFinal();
+      }
+
+      // Returns the first <length> bytes of new PRGen(key).nextBytes
+      byte[] generate(byte[] key, int length) {
+         byte[] out = new byte[length];
+         try {
+            for (int i = 0; i < length; ) {
+               mac.init(deriveKey(key));
+               byte[] block = mac.doFinal(OUTPUT_LABEL);
+               key = mac.doFinal(NEXT_KEY_LABEL);
+               int rnd = (block[0] & 0xff) << 24 | (block[1] & 0xff) << 16
+                  | (block[2] & 0xff) << 8 | (block[3] & 0xff);
+               for (int n = Math.min(length - i, 4); n-- > 0; rnd >>= 8)
+                  out[i++] = (byte) rnd;
+            }
+         } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+         }
+         return out;
+      }
+   }
+
+   /*
+    * A batch of (key, message, signature) checks, typically all inputs of an
+    * epoch. Identical checks are run once, and checks under the same key are
+    * run next to each other.
+    */
+   public static class Batch {
+
+      private final ArrayList<RSAKey> keys = new ArrayList<RSAKey>();
+      private final ArrayList<byte[]> messages = new ArrayList<byte[]>();
+      private final ArrayList<byte[]> signatures = new ArrayList<byte[]>();
+
+      // Adds a check and returns its position in the result of verify()
+      public int add(RSAKey address, byte[] message, byte[] signature) {
+         keys.add(address);
+         messages.add(message);
+         signatures.add(signature);
+         return keys.size() - 1;
+      }
+
+      public int size() {
+         return keys.size();
+      }
+
+      // Runs the checks on the common fork-join pool
+      public boolean[] verify() throws InterruptedException {
+         return verify(null, TxMetrics.NONE);
+      }
+
+      // Runs the checks on <executor>, or the common fork-join pool if it is
+      // null, reporting the time of each distinct check to <metrics>.
+      // Result i is the outcome of the check added at position i.
+      public boolean[] verify(ExecutorService executor, final TxMetrics metrics) throws InterruptedException {
+         int n = keys.size();
+         HashMap<Check, Integer> distinct = new HashMap<Check, Integer>();
+         final ArrayList<Check> checks = new ArrayList<Check>();
+         final int[] checkOf = new int[n];
+         for (int j = 0; j < n; j++) {
+            Check c = new Check(keys.get(j), messages.get(j), signatures.get(j));
+            Integer known = distinct.get(c);
+            if (known == null) {
+               known = checks.size();
+               distinct.put(c, known);
+               checks.add(c);
+            }
+            checkOf[j] = known;
+         }
+
+         Integer[] order = new Integer[checks.size()];
+         for (int k = 0; k < order.length; k++)
+            order[k] = k;
+         Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+               return checks.get(a).address.getModulus().compareTo(checks.get(b).address.getModulus());
+            }
+         });
+
+         final boolean[] ok = new boolean[checks.size()];
+         final Integer[] sorted = order;
+         int parallelism = Runtime.getRuntime().availableProcessors();
+         int chunk = Math.max(1, (order.length + parallelism * 4 - 1) / (parallelism * 4));
+         ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+         for (int start = 0; start < order.length; start += chunk) {
+            final int from = start;
+            final int to = Math.min(order.length, start + chunk);
+            tasks.add(new Callable<Void>() {
+               public Void call() {
+                  for (int k = from; k < to; k++) {
+                     Check c = checks.get(sorted[k]);
+                     if (!metrics.isEnabled()) {
+                        ok[sorted[k]] = SignatureVerifier.verify(c.address, c.message, c.signature);
+                        continue;
+                     }
+                     long begin = System.nanoTime();
+                     ok[sorted[k]] = SignatureVerifier.verify(c.address, c.message, c.signature);
+                     metrics.signatureVerified(System.nanoTime() - begin);
+                  }
+                  return null;
+               }
+            });
+         }
+
+         if (tasks.size() == 1) {
+            try {
+               tasks.get(0).call();
+            } catch (Exception e) {
+               throw new RuntimeException(e);
+            }
+         } else if (!tasks.isEmpty()) {
+            ExecutorService pool = executor != null ? executor : ForkJoinPool.commonPool();
+            try {
+               for (Future<Void> f : pool.invokeAll(tasks))
+                  f.get();
+            } catch (ExecutionException e) {
+               throw new RuntimeException(e.getCause());
+            }
+         }
+
+         boolean[] result = new boolean[n];
+         for (int j = 0; j < n; j++)
+            result[j] = ok[checkOf[j]];
+         return result;
+      }
+   }
+
+   // One distinct check; keys are equal when their exponent and modulus are
+   private static class Check {
+      final RSAKey address;
+      final byte[] message;
+      final byte[] signature;
+      final int hashCode;
+
+      Check(RSAKey address, byte[] message, byte[] signature) {
+         this.address = address;
+         this.message = message;
+         this.signature = signature;
+         int h = address.getModulus().hashCode();
+         h = h * 31 + Arrays.hashCode(message);
+         h = h * 31 + Arrays.hashCode(signature);
+         hashCode = h;
+      }
+
+      public boolean equals(Object other) {
+         if (!(other instanceof Check))
+            return false;
+         Check c = (Check) other;
+         return hashCode == c.hashCode
+            && Arrays.equals(message, c.message) && Arrays.equals(signature, c.signature)
+            && address.getModulus().equals(c.address.getModulus())
+            && address.getExponent().equals(c.address.getExponent());
+      }
+
+      public int hashCode() {
+         return hashCode;
+      }
+   }
+}
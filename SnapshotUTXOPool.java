@@ -0,0 +1,211 @@
+/* 
+ * SnapshotUTXOPool.java
+ * 
+ * This class represents a cheap snapshot of a UTXO pool: the changes made to
+ * it are kept as a delta on top of the parent pool, which is shared rather
+ * than copied
+ */
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class SnapshotUTXOPool extends UTXOPool {
+   
+   private final UTXOPool parent;
+   
+   // UTXOs added since the snapshot was taken, possibly replacing the parent's
+   private HashMap<UTXO, Transaction.Output> added;
+   
+   // UTXOs of the parent removed since the snapshot was taken
+   private HashSet<UTXO> removed;
+   
+   // size() minus the parent's size
+   private int sizeDelta;
+   
+   // Bumped whenever a UTXO is added or removed, so that traversals can fail
+   // fast
+   private int modCount;
+   
+   private boolean closed;
+   
+   // Creates a snapshot of <parent>. The parent must not be modified until the
+   // snapshot is committed or discarded, other than by committing sibling
+   // snapshots with disjoint changes: several snapshots of one parent that
+   // each read and change their own UTXOs may be committed one after
+   // another. Only the snapshot's changes still hold after that, not its
+   // size() or traversals. Use UTXOPool.snapshot() to make one.
+   SnapshotUTXOPool(UTXOPool parent) {
+      this.parent = parent;
+      added = new HashMap<UTXO, Transaction.Output>();
+      removed = new HashSet<UTXO>();
+   }
+   
+   // Returns the pool this snapshot was taken of
+   public UTXOPool getParent() {
+      return parent;
+   }
+   
+   // Applies the changes made to this snapshot to the parent, in O(changes),
+   // and closes the snapshot
+   public void commit() {
+      checkOpen();
+      for (UTXO ut : removed)
+         parent.removeUTXO(ut);
+      for (Map.Entry<UTXO, Transaction.Output> e : added.entrySet())
+         parent.addUTXO(e.getKey(), e.getValue());
+      discard();
+   }
+   
+   // Same as commit(), first recording each change to the parent in <undo>
+   // unless it is null
+   void commit(UndoJournal undo) {
+      checkOpen();
+      if (undo != null) {
+         for (UTXO ut : removed) {
+            Transaction.Output out = parent.getTxOutput(ut);
+            if (out != null)
+               undo.spent(ut, out);
+         }
+         for (UTXO ut : added.keySet()) {
+            Transaction.Output replaced = parent.getTxOutput(ut);
+            if (replaced != null)
+               undo.spent(ut, replaced);
+            undo.created(ut);
+         }
+      }
+      commit();
+   }
+   
+   // Drops the changes made to this snapshot and closes it; the parent is left
+   // as it was
+   public void discard() {
+      added = null;
+      removed = null;
+      closed = true;
+   }
+   
+   // Returns the number of UTXOs added or removed relative to the parent
+   public int numChanges() {
+      checkOpen();
+      return added.size() + removed.size();
+   }
+   
+   public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+      checkOpen();
+      if (tracking())
+         adding(utxo, getTxOutput(utxo), txOut);
+      if (removed.remove(utxo)) {
+         sizeDelta++;
+         modCount++;
+      } else if (!added.containsKey(utxo) && !parent.contains(utxo)) {
+         sizeDelta++;
+         modCount++;
+      }
+      added.put(utxo, txOut);
+   }
+   
+   public void removeUTXO(UTXO utxo) {
+      checkOpen();
+      if (tracking())
+         removing(utxo, getTxOutput(utxo));
+      boolean wasAdded = added.containsKey(utxo);
+      if (wasAdded)
+         added.remove(utxo);
+      if (!removed.contains(utxo) && parent.contains(utxo)) {
+         removed.add(utxo);
+         sizeDelta--;
+         modCount++;
+      } else if (wasAdded) {
+         sizeDelta--;
+         modCount++;
+      }
+   }
+   
+   public Transaction.Output getTxOutput(UTXO ut) {
+      checkOpen();
+      if (removed.contains(ut))
+         return null;
+      Transaction.Output out = added.get(ut);
+      if (out != null || added.containsKey(ut))
+         return out;
+      if (!parent.mightContain(ut.getTxHash(), ut.getIndex()))
+         return null;
+      return parent.getTxOutput(ut);
+   }
+   
+   // Asks the parent's filter, if it has one, before the parent itself
+   public boolean contains(UTXO utxo) {
+      checkOpen();
+      if (removed.contains(utxo))
+         return false;
+      if (added.containsKey(utxo))
+         return true;
+      return parent.mightContain(utxo.getTxHash(), utxo.getIndex()) && parent.contains(utxo);
+   }
+   
+   // Goes straight to the parent, without allocating, while nothing changed
+   public Transaction.Output getTxOutput(byte[] txHash, int index) {
+      checkOpen();
+      if (added.isEmpty() && removed.isEmpty())
+         return parent.getTxOutput(txHash, index);
+      return getTxOutput(new UTXO(txHash, index));
+   }
+   
+   public boolean contains(byte[] txHash, int index) {
+      checkOpen();
+      if (added.isEmpty() && removed.isEmpty())
+         return parent.contains(txHash, index);
+      return contains(new UTXO(txHash, index));
+   }
+   
+   public int size() {
+      checkOpen();
+      return parent.size() + sizeDelta;
+   }
+   
+   public ArrayList<UTXO> getAllUTXO() {
+      checkOpen();
+      final ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(size());
+      parent.forEach(new BiConsumer<UTXO, Transaction.Output>() {
+         public void accept(UTXO ut, Transaction.Output txOut) {
+            if (!removed.contains(ut) && !added.containsKey(ut))
+               allUTXO.add(ut);
+         }
+      });
+      allUTXO.addAll(added.keySet());
+      return allUTXO;
+   }
+   
+   // Traverses the parent in place, skipping what the snapshot removed or
+   // replaced, then the UTXOs added to the snapshot. Fail-fast, both for
+   // changes to the snapshot and, as far as the parent's own traversal
+   // detects them, for changes to the parent.
+   public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+      checkOpen();
+      final int expected = modCount;
+      Stream<Map.Entry<UTXO, Transaction.Output>> kept = parent.stream().filter(
+            new Predicate<Map.Entry<UTXO, Transaction.Output>>() {
+               public boolean test(Map.Entry<UTXO, Transaction.Output> e) {
+                  if (modCount != expected)
+                     throw new ConcurrentModificationException();
+                  return !removed.contains(e.getKey()) && !added.containsKey(e.getKey());
+               }
+            });
+      Stream<Map.Entry<UTXO, Transaction.Output>> own =
+            StreamSupport.stream(new ImmutableEntries(added.entrySet().spliterator()), false);
+      return Stream.concat(kept, own).spliterator();
+   }
+   
+   private void checkOpen() {
+      if (closed)
+         throw new IllegalStateException("snapshot was already committed or discarded");
+   }
+}
@@ -1,4 +1,3 @@
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.security.MessageDigest;
@@ -6,6 +5,24 @@ import java.security.NoSuchAlgorithmException;
 
 public class Transaction {
 
+   // Number of base units in one bitcoin; amounts are whole base units
+   public static final long COIN = 100000000L;
+
+   // Converts a value in bitcoins to base units, rounding to the nearest
+   // unit. Throws ArithmeticException if <value> is not finite or the amount
+   // does not fit in a long.
+   public static long toAmount(double value) {
+      double units = value * COIN;
+      if (!(Math.abs(units) < 0x1p63))
+         throw new ArithmeticException("not a valid amount: " + value);
+      return Math.round(units);
+   }
+
+   // Converts base units to the nearest value in bitcoins
+   public static double toValue(long units) {
+      return (double) units / COIN;
+   }
+
    public class Input {
       public byte[] prevTxHash;   // hash of the Transaction whose output is being used
       public int outputIndex;     // used output's index in the previous transaction 
@@ -30,10 +47,76 @@ public class Transaction {
       public double value;        // value in bitcoins of the output
       public RSAKey address;      // the address or public key of the recipient
 
+      // serialized exponent and modulus of the address it was computed for
+      private EncodedAddress encoded;
+
+      // exact amount of <value>, and the value bits it was computed for
+      private Amount amount;
+
       public Output(double v, RSAKey addr) {
          value = v;
          address = addr;
       }
+
+      // Returns <value> as a whole number of base units (COIN per bitcoin),
+      // rounded to the nearest unit. An output made from an amount returns
+      // exactly that amount until <value> is changed. Throws
+      // ArithmeticException if <value> is not finite or does not fit.
+      public long getAmount() {
+         Amount a = amount;
+         long bits = Double.doubleToRawLongBits(value);
+         if (a == null || a.valueBits != bits) {
+            a = new Amount(bits, toAmount(value));
+            amount = a;
+         }
+         return a.units;
+      }
+
+      // Sets this output to <units> base units; <value> becomes the nearest
+      // double, which is what getRawTx serializes
+      public void setAmount(long units) {
+         value = toValue(units);
+         amount = new Amount(Double.doubleToRawLongBits(value), units);
+      }
+
+      // Takes over the amount <other> carries for its value, for copies
+      void copyAmount(Output other) {
+         amount = other.amount;
+      }
+
+      // Returns the exponent bytes followed by the modulus bytes of <address>,
+      // computed once per address. Callers must not modify the array.
+      byte[] encodedAddress() {
+         EncodedAddress e = encoded;
+         if (e == null || e.key != address) {
+            e = new EncodedAddress(address);
+            encoded = e;
+         }
+         return e.bytes;
+      }
+   }
+
+   // Immutable for the same reason as EncodedAddress
+   private static class Amount {
+      final long valueBits;
+      final long units;
+
+      Amount(long valueBits, long units) {
+         this.valueBits = valueBits;
+         this.units = units;
+      }
+   }
+
+   // Immutable so that it can be published to other threads without locking.
+   // The bytes are shared by every output paid to an equal address.
+   private static class EncodedAddress {
+      final RSAKey key;
+      final byte[] bytes;
+
+      EncodedAddress(RSAKey key) {
+         bytes = AddressTable.encoded(key);
+         this.key = key;
+      }
    }
 
    private byte[] hash;    // hash of the transaction, its unique id
@@ -61,6 +144,14 @@ public class Transaction {
       outputs.add(op);
    }
 
+   // Adds an output of exactly <units> base units. This is not an overload of
+   // addOutput so that addOutput(10, key) keeps meaning 10 bitcoins.
+   public void addOutputAmount(long units, RSAKey address) {
+      Output op = new Output(0, address);
+      op.setAmount(units);
+      outputs.add(op);
+   }
+
    public void removeInput(int index) {
       inputs.remove(index);
    }
@@ -78,78 +169,138 @@ public class Transaction {
 
    public byte[] getRawDataToSign(int index) {
       // ith input and all outputs
-      ArrayList<Byte> sigData = new ArrayList<Byte>();
       if (index > inputs.size()) 
          return null;
       Input in = inputs.get(index);
-      byte[] prevTxHash = in.prevTxHash;
-      ByteBuffer b = ByteBuffer.allocate(Integer.SIZE/8);
-      b.putInt(in.outputIndex);
-      byte[] outputIndex = b.array();
-      if (prevTxHash != null)
-         for (int i = 0; i < prevTxHash.length; i++)
-            sigData.add(prevTxHash[i]);
-      for (int i = 0; i < outputIndex.length; i++)
-         sigData.add(outputIndex[i]);
-      for (Output op : outputs) {
-         ByteBuffer bo = ByteBuffer.allocate(Double.SIZE/8);
-         bo.putDouble(op.value);
-         byte[] value = bo.array();
-         byte[] addressExponent = op.address.getExponent().toByteArray();
-         byte[] addressModulus = op.address.getModulus().toByteArray();
-         for (int i = 0; i < value.length; i++)
-            sigData.add(value[i]);
-         for (int i = 0; i < addressExponent.length; i++)
-            sigData.add(addressExponent[i]);
-         for (int i = 0; i < addressModulus.length; i++)
-            sigData.add(addressModulus[i]);
-      }
-      byte[] sigD = new byte[sigData.size()];
-      int i = 0;
-      for(Byte sb : sigData)
-         sigD[i++] = sb;
+      byte[] sigD = new byte[inputPrefixLength(in, false) + outputsLength()];
+      int pos = writeInputPrefix(sigD, 0, in, false);
+      writeOutputs(sigD, pos);
       return sigD;
    }
 
+   // Returns getRawDataToSign(i) for every input i, encoding the outputs,
+   // which every input signs, only once
+   public byte[][] getAllRawDataToSign() {
+      byte[] outputData = new byte[outputsLength()];
+      writeOutputs(outputData, 0);
+      byte[][] sigData = new byte[inputs.size()][];
+      for (int i = 0; i < inputs.size(); i++) {
+         Input in = inputs.get(i);
+         byte[] sigD = new byte[inputPrefixLength(in, false) + outputData.length];
+         int pos = writeInputPrefix(sigD, 0, in, false);
+         System.arraycopy(outputData, 0, sigD, pos, outputData.length);
+         sigData[i] = sigD;
+      }
+      return sigData;
+   }
+
+   // The hash equals() identifies this transaction by, for kinds that cannot
+   // change once built; null, and identity equality, for this class
+   byte[] identity() {
+      return null;
+   }
+
+   // getRawDataToSign(index) and getAllRawDataToSign() for callers that only
+   // read the result, which lets ImmutableTransaction skip copying it
+   byte[] rawDataToSign(int index) {
+      return getRawDataToSign(index);
+   }
+
+   byte[][] allRawDataToSign() {
+      return getAllRawDataToSign();
+   }
+
+   // getInput(index) and getOutput(index) for callers that only read the
+   // result, which lets the kinds that cannot change skip copying it
+   Input input(int index) {
+      return getInput(index);
+   }
+
+   Output output(int index) {
+      return getOutput(index);
+   }
+
+   // The value and the amount of output <index>, for the same callers; kinds
+   // that build outputs on demand read them without building the output
+   double value(int index) {
+      return output(index).value;
+   }
+
+   long amount(int index) {
+      return output(index).getAmount();
+   }
+
    public void addSignature(byte[] signature, int index) {
       inputs.get(index).addSignature(signature);
    }
 
    public byte[] getRawTx() {
-      ArrayList<Byte> rawTx = new ArrayList<Byte>();
-      for (Input in : inputs) {
-         byte[] prevTxHash = in.prevTxHash;
-         ByteBuffer b = ByteBuffer.allocate(Integer.SIZE/8);
-         b.putInt(in.outputIndex);
-         byte[] outputIndex = b.array();
-         byte[] signature = in.signature;
-         if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-               rawTx.add(prevTxHash[i]);
-         for (int i = 0; i < outputIndex.length; i++)
-            rawTx.add(outputIndex[i]);
-         if (signature != null)
-            for (int i = 0; i < signature.length; i++)
-               rawTx.add(signature[i]);
+      int length = outputsLength();
+      for (Input in : inputs)
+         length += inputPrefixLength(in, true);
+      byte[] tx = new byte[length];
+      int pos = 0;
+      for (Input in : inputs)
+         pos = writeInputPrefix(tx, pos, in, true);
+      writeOutputs(tx, pos);
+      return tx;
+   }
+
+   // The raw encodings below are written straight into a presized array: an
+   // input is its previous hash, its big-endian output index and, in getRawTx
+   // only, its signature; an output is its big-endian value bits followed by
+   // the exponent and modulus bytes of its address.
+
+   private static int inputPrefixLength(Input in, boolean withSignature) {
+      int length = Integer.SIZE/8;
+      if (in.prevTxHash != null)
+         length += in.prevTxHash.length;
+      if (withSignature && in.signature != null)
+         length += in.signature.length;
+      return length;
+   }
+
+   private static int writeInputPrefix(byte[] buf, int pos, Input in, boolean withSignature) {
+      if (in.prevTxHash != null) {
+         System.arraycopy(in.prevTxHash, 0, buf, pos, in.prevTxHash.length);
+         pos += in.prevTxHash.length;
+      }
+      pos = writeInt(buf, pos, in.outputIndex);
+      if (withSignature && in.signature != null) {
+         System.arraycopy(in.signature, 0, buf, pos, in.signature.length);
+         pos += in.signature.length;
       }
+      return pos;
+   }
+
+   private int outputsLength() {
+      int length = 0;
+      for (Output op : outputs)
+         length += Double.SIZE/8 + op.encodedAddress().length;
+      return length;
+   }
+
+   private int writeOutputs(byte[] buf, int pos) {
       for (Output op : outputs) {
-         ByteBuffer b = ByteBuffer.allocate(Double.SIZE/8);
-         b.putDouble(op.value);
-         byte[] value = b.array();
-         byte[] addressExponent = op.address.getExponent().toByteArray();
-         byte[] addressModulus = op.address.getModulus().toByteArray();
-         for (int i = 0; i < value.length; i++)
-            rawTx.add(value[i]);
-         for (int i = 0; i < addressExponent.length; i++)
-            rawTx.add(addressExponent[i]);
-         for (int i = 0; i < addressModulus.length; i++)
-            rawTx.add(addressModulus[i]);
-      }
-      byte[] tx = new byte[rawTx.size()];
-      int i = 0;
-      for(Byte b : rawTx)
-         tx[i++] = b;
-      return tx;
+         pos = writeLong(buf, pos, Double.doubleToRawLongBits(op.value));
+         byte[] address = op.encodedAddress();
+         System.arraycopy(address, 0, buf, pos, address.length);
+         pos += address.length;
+      }
+      return pos;
+   }
+
+   private static int writeInt(byte[] buf, int pos, int v) {
+      buf[pos] = (byte) (v >>> 24);
+      buf[pos + 1] = (byte) (v >>> 16);
+      buf[pos + 2] = (byte) (v >>> 8);
+      buf[pos + 3] = (byte) v;
+      return pos + 4;
+   }
+
+   private static int writeLong(byte[] buf, int pos, long v) {
+      writeInt(buf, pos, (int) (v >>> 32));
+      return writeInt(buf, pos + 4, (int) v);
    }
 
    public void finalize() {
@@ -1,15 +1,190 @@
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 
 public class TxHandler {
 	public UTXOPool pool;
+
+    // how the signatures of an epoch are checked in handleTxs
+    public enum VerificationMode { SEQUENTIAL, PARALLEL }
+
+    private VerificationMode verificationMode = VerificationMode.SEQUENTIAL;
+    private ExecutorService verifier;   // null means the common fork-join pool
+
+    // how handleTxs validates and applies the transactions of an epoch
+    public enum ApplyMode { SEQUENTIAL, PARTITIONED }
+
+    private ApplyMode applyMode = ApplyMode.SEQUENTIAL;
+    private ExecutorService applier;    // null means the common fork-join pool
+
+    // results of earlier signature checks, shared with handlers made from this one
+    private SignatureCache sigCache = new SignatureCache();
+
+    // where hot-path measurements go; NONE keeps them from being taken
+    private TxMetrics metrics = TxMetrics.NONE;
+
+    // records each epoch's changes to the pool so that it can be rolled back;
+    // null keeps no record
+    private UndoJournal journal;
+
+    // signature results computed ahead of the acceptance pass, by transaction
+    private IdentityHashMap<Transaction, VerifiedInputs> preverified;
+
+    // outcome of submitting a single transaction
+    public enum SubmitResult { ACCEPTED, REJECTED, PENDING }
+
+    // told about every transaction accepted through submit, and about every
+    // orphan accepted later, whichever call made the outputs it waits for
+    // appear
+    public interface AcceptListener {
+        void accepted(Transaction tx);
+    }
+
+    public static final int DEFAULT_MAX_ORPHANS = 10000;
+
+    // submitted transactions waiting for outputs that are not in the pool yet,
+    // oldest first, and the same transactions indexed by the outputs they miss
+    private final LinkedHashMap<Transaction, Orphan> orphans = new LinkedHashMap<Transaction, Orphan>();
+    private final HashMap<UTXO, ArrayList<Transaction>> orphansByMissing = new HashMap<UTXO, ArrayList<Transaction>>();
+    private int maxOrphans = DEFAULT_MAX_ORPHANS;
+    private AcceptListener acceptListener;
+
+    // held while the filter is rebuilt
+    private final Object filterLock = new Object();
+
 	/* Creates a public ledger whose current UTXOPool (collection of unspent 
-	 * transaction outputs) is utxoPool. This should make a defensive copy of 
-	 * utxoPool by using the UTXOPool(UTXOPool uPool) constructor.
+	 * transaction outputs) is utxoPool. This makes a defensive copy of 
+	 * utxoPool through UTXOPool.copy(), and enables the address index, the
+	 * running commitment and the filter on the copy if utxoPool has them
+	 * enabled. The copy keeps the pool's storage kind, except that a
+	 * MappedUTXOPool is copied to a CompactUTXOPool on the heap: the handler
+	 * never writes to the file, which keeps the state it was opened with.
 	 */
 	public TxHandler(UTXOPool utxoPool) {
-		pool = new UTXOPool(utxoPool);
+		this(utxoPool, false);
 	}
 
+	/* Same as above, except that with <adopt> set the handler takes over
+	 * utxoPool itself instead of copying it: every change it makes goes
+	 * straight to utxoPool, which the caller must not change any more. This
+	 * is how a handler works on a MappedUTXOPool without loading it onto the
+	 * heap; the handler does not checkpoint or close the pool.
+	 */
+	public TxHandler(UTXOPool utxoPool, boolean adopt) {
+		if (adopt) {
+			pool = utxoPool;
+			return;
+		}
+		pool = utxoPool.copy();
+		if (utxoPool.getAddressIndex() != null && pool.getAddressIndex() == null) {
+			pool.enableAddressIndex();
+		}
+		if (utxoPool.hasCommitment() && !pool.hasCommitment()) {
+			pool.enableCommitment();
+		}
+		if (utxoPool.getFilter() != null && pool.getFilter() == null) {
+			pool.enableFilter();
+		}
+	}
+
+    /* Selects whether handleTxs checks signatures one after another on the
+     * calling thread (the default) or in a separate stage on the common
+     * fork-join pool before the acceptance pass.
+     */
+    public void setVerificationMode(VerificationMode mode) {
+        setVerificationMode(mode, null);
+    }
+
+    /* Same as above, running the parallel stage on <executor>. The executor is
+     * not shut down by this handler.
+     */
+    public void setVerificationMode(VerificationMode mode, ExecutorService executor) {
+        verificationMode = mode;
+        verifier = executor;
+    }
+
+    public VerificationMode getVerificationMode() {
+        return verificationMode;
+    }
+
+    /* Selects whether handleTxs validates and applies the transactions of an
+     * epoch one after another (the default), or splits the epoch into
+     * components that share no UTXO and handles the components concurrently
+     * on the common fork-join pool. Both accept the same transactions, in the
+     * same order, and leave the same pool.
+     */
+    public void setApplyMode(ApplyMode mode) {
+        setApplyMode(mode, null);
+    }
+
+    /* Same as above, handling the components on <executor>. The executor is
+     * not shut down by this handler.
+     */
+    public void setApplyMode(ApplyMode mode, ExecutorService executor) {
+        applyMode = mode;
+        applier = executor;
+    }
+
+    public ApplyMode getApplyMode() {
+        return applyMode;
+    }
+
+    /* Replaces the cache of signature check results; null disables caching.
+     */
+    public void setSignatureCache(SignatureCache cache) {
+        sigCache = cache;
+    }
+
+    public SignatureCache getSignatureCache() {
+        return sigCache;
+    }
+
+    /* Sends signature, serialization and UTXO lookup latencies, rejections by
+     * reason and per-epoch totals to <metrics>; null restores TxMetrics.NONE.
+     */
+    public void setMetrics(TxMetrics metrics) {
+        this.metrics = metrics != null ? metrics : TxMetrics.NONE;
+    }
+
+    public TxMetrics getMetrics() {
+        return metrics;
+    }
+
+    /* Records the changes every following handleTxs makes to the pool in
+     * <journal>, one epoch per call, so that rollback can undo them; null
+     * stops recording. Changes made through acceptTx and submit are not
+     * recorded, so they must not be interleaved with epochs that may be
+     * rolled back. The journal is not closed by this handler.
+     */
+    public void setUndoJournal(UndoJournal journal) {
+        this.journal = journal;
+    }
+
+    public UndoJournal getUndoJournal() {
+        return journal;
+    }
+
+    /* Restores the pool to what it was before epoch <epoch>, undoing that
+     * epoch and every later one in O(changes), newest first. Epochs are
+     * numbered by the journal; getUndoJournal().lastEpoch() is the last one
+     * handled. Pending orphans are kept.
+     */
+    public void rollback(long epoch) throws IOException {
+        if (journal == null) throw new IllegalStateException("no undo journal is set");
+        journal.rollback(epoch, pool);
+        growFilter();
+
+        // outputs spent since <epoch> are back, and may be what orphans wait for
+        ArrayList<UTXO> restored = new ArrayList<UTXO>();
+        synchronized (orphans) {
+            for (UTXO utxo : orphansByMissing.keySet()) {
+                if (pool.contains(utxo)) restored.add(utxo);
+            }
+        }
+        releaseOrphans(restored);
+    }
+
     	/* Returns true if
 	 * (1) all outputs claimed by tx are in the current UTXO pool,
 	 * (2) the signatures on each input of tx are valid,
@@ -21,73 +196,249 @@ public class TxHandler {
 	 */
 
     public boolean isValidTx(Transaction tx) {
-        boolean hasValidInputs = hasValidInputs(tx);
-        boolean hasValidOutputs = hasValidOutputs(tx);
+        return validate(tx) == null;
+    }
+
+    /* Checks the same rules as isValidTx, cheapest first, and returns the
+     * first one tx breaks, or null if tx is valid:
+     * (a) stateless checks: every output value is non-negative and no UTXO
+     *     is claimed twice;
+     * (b) every claimed output is in the pool, one lookup per input;
+     * (c) the claimed values cover the outputs, using the outputs found in (b);
+     * (d) only then the RSA signature on each input.
+     * An invalid transaction therefore costs at most a few hash lookups
+     * unless its signatures are the only thing wrong with it.
+     */
+    public RejectReason validate(Transaction tx) {
+        return validate(tx, pool);
+    }
+
+    // validates tx against <from> instead of the pool
+    private RejectReason validate(Transaction tx, UTXOPool from) {
+        RejectReason reason = checkTx(tx, from);
+        if (reason != null) {
+            metrics.rejected(reason);
+        }
+        return reason;
+    }
 
-        double fee = calculateFee(tx);
-        boolean hasValidFee = fee >= 0;
+    private RejectReason checkTx(Transaction tx, UTXOPool from) {
+        // (a) stateless
+        RejectReason reason = checkOutputs(tx);
+        if (reason != null) return reason;
+        if (hasDoubleClaim(tx)) return RejectReason.DOUBLE_CLAIM;
+
+        // (b) UTXO existence
+        int n = tx.numInputs();
+        Transaction.Output[] claimed = new Transaction.Output[n];
+        for (int i = 0; i < n; i++) {
+            claimed[i] = lookup(tx.input(i), from);
+            if (claimed[i] == null) return RejectReason.MISSING_UTXO;
+        }
+
+        // (c) fee balance, exact in base units
+        try {
+            long in = 0;
+            for (Transaction.Output output : claimed) {
+                in = Math.addExact(in, output.getAmount());
+            }
+            if (in < totalAmount(tx)) return RejectReason.INSUFFICIENT_FEE;
+        } catch (ArithmeticException e) {
+            return RejectReason.INVALID_AMOUNT;
+        }
 
-        return hasValidInputs && hasValidOutputs && hasValidFee;
+        // (d) signatures
+        for (int i = 0; i < n; i++) {
+            if (!verifySignature(tx, i, claimed[i].address)) return RejectReason.BAD_SIGNATURE;
+        }
+        return null;
     }
 
-    /* returns true iff
-     * (1) claimed outputs are in UTXO pool
-     * (2) signatures on each input is valid
-     * (3) claimed outputs are unique
-     */
-    private boolean hasValidInputs(Transaction tx) {
-        UTXOPool consumed = new UTXOPool();
+    // returns true iff two inputs of tx claim the same output
+    private boolean hasDoubleClaim(Transaction tx) {
+        int n = tx.numInputs();
+        if (n < 2) return false;
+        HashSet<UTXO> seen = new HashSet<UTXO>(n * 2);
+        for (int i = 0; i < n; i++) {
+            Transaction.Input input = tx.input(i);
+            // an input without a hash is rejected by the lookup instead
+            if (input.prevTxHash == null) continue;
+            if (!seen.add(new UTXO(input.prevTxHash, input.outputIndex))) return true;
+        }
+        return false;
+    }
 
-        for (int i = 0; i < tx.numInputs(); i++) {
-            Transaction.Input input = tx.getInput(i);
+    // looks up the output claimed by input in <from>, timed when metrics are
+    // enabled
+    private Transaction.Output lookup(Transaction.Input input, UTXOPool from) {
+        if (input.prevTxHash == null) return null;
+        if (!metrics.isEnabled()) {
+            return from.getTxOutput(input.prevTxHash, input.outputIndex);
+        }
+        long start = System.nanoTime();
+        Transaction.Output claimed = from.getTxOutput(input.prevTxHash, input.outputIndex);
+        metrics.utxoLookup(System.nanoTime() - start);
+        return claimed;
+    }
 
-            // test claimed outputs exist and are unique
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-            if (!pool.contains(utxo) || consumed.contains(utxo)) {
-                return false;
+    // checks the signature on input <index> of tx against <address>, reusing the
+    // result of the parallel stage when it was computed against the same key
+    private boolean verifySignature(Transaction tx, int index, RSAKey address) {
+        if (preverified != null) {
+            VerifiedInputs verified = preverified.get(tx);
+            if (verified != null && verified.keys[index] == address) {
+                return verified.ok[index];
             }
-            consumed.addUTXO(utxo, null);
+        }
 
-            // test signature validity on this input
-            byte[] msg = tx.getRawDataToSign(i);
-            byte[] sig = input.signature;
-            if (!pool.getTxOutput(utxo).address.verifySignature(msg, sig)) {
-                return false;
+        return checkSignature(tx, index, address);
+    }
+
+    // runs the signature check on input <index> of tx, through the cache if any
+    private boolean checkSignature(Transaction tx, int index, RSAKey address) {
+        if (sigCache != null) {
+            return sigCache.verify(tx, index, address, metrics);
+        }
+        return SignatureCache.verifyNow(tx, index, address, metrics);
+    }
+
+    // signature results for the inputs of one transaction; keys[i] is the
+    // address ok[i] was checked against, or null if input i was not checked
+    private static class VerifiedInputs {
+        final RSAKey[] keys;
+        final boolean[] ok;
+
+        VerifiedInputs(int n) {
+            keys = new RSAKey[n];
+            ok = new boolean[n];
+        }
+    }
+
+    /* Checks every (input, signature, message) triple of the epoch in parallel.
+     * The address of each claimed output is resolved up front on this thread,
+     * from the pool or from the outputs of other transactions in the epoch, so
+     * the workers never touch the pool. Triples not in the signature cache go
+     * to one SignatureVerifier.Batch, which groups them by key and runs each
+     * distinct triple once. A result is only used later if the
+     * acceptance pass resolves the very same address, which keeps the accepted
+     * set identical to the sequential path.
+     */
+    private IdentityHashMap<Transaction, VerifiedInputs> verifyEpochSignatures(Transaction[] txs) {
+        HashMap<UTXO, Transaction.Output> epochOutputs = new HashMap<UTXO, Transaction.Output>();
+        for (Transaction tx : txs) {
+            if (tx.getHash() == null) continue;
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                epochOutputs.put(new UTXO(tx.getHash(), i), tx.getOutput(i));
             }
         }
 
-        return true;
+        IdentityHashMap<Transaction, VerifiedInputs> results = new IdentityHashMap<Transaction, VerifiedInputs>();
+        SignatureVerifier.Batch batch = new SignatureVerifier.Batch();
+        ArrayList<Transaction> jobTx = new ArrayList<Transaction>();
+        ArrayList<Integer> jobIndex = new ArrayList<Integer>();
+        for (Transaction tx : txs) {
+            VerifiedInputs verified = new VerifiedInputs(tx.numInputs());
+            byte[][] rawData = null;
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.input(i);
+                if (input.prevTxHash == null || input.signature == null) continue;
+                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+                Transaction.Output claimed = pool.getTxOutput(utxo);
+                if (claimed == null) claimed = epochOutputs.get(utxo);
+                if (claimed == null) continue;
+                verified.keys[i] = claimed.address;
+
+                Boolean cached = sigCache != null ? sigCache.lookup(tx, i, claimed.address) : null;
+                if (cached != null) {
+                    verified.ok[i] = cached;
+                    continue;
+                }
+                if (rawData == null) {
+                    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+                    rawData = tx.allRawDataToSign();
+                    if (metrics.isEnabled()) metrics.rawDataSerialized(System.nanoTime() - start);
+                }
+                batch.add(claimed.address, rawData[i], input.signature);
+                jobTx.add(tx);
+                jobIndex.add(i);
+            }
+            results.put(tx, verified);
+        }
+
+        boolean[] ok;
+        try {
+            ok = batch.verify(verifier, metrics);
+        } catch (InterruptedException e) {
+            // fall back to checking signatures on this thread
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        for (int j = 0; j < ok.length; j++) {
+            Transaction tx = jobTx.get(j);
+            int i = jobIndex.get(j);
+            VerifiedInputs verified = results.get(tx);
+            verified.ok[i] = ok[j];
+            if (sigCache != null) sigCache.store(tx, i, verified.keys[i], ok[j]);
+        }
+        return results;
     }
 
     /* returns true iff (4) all output values are non-negative
      */
     private boolean hasValidOutputs(Transaction tx) {
-        for (Transaction.Output output : tx.getOutputs()) {
-            if (output.value < 0) return false;
+        return checkOutputs(tx) == null;
+    }
+
+    // returns why the outputs of tx are invalid, or null if every one is a
+    // non-negative whole number of base units and their sum fits in a long.
+    // A value that only rounds to such an amount, like -1e-9 or 1e-9, is
+    // rejected rather than counted as the amount it rounds to.
+    RejectReason checkOutputs(Transaction tx) {
+        try {
+            long out = 0;
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                double value = tx.value(i);
+                if (value < 0) return RejectReason.NEGATIVE_OUTPUT;
+                long amount = tx.amount(i);
+                if (Transaction.toValue(amount) != value) return RejectReason.INVALID_AMOUNT;
+                out = Math.addExact(out, amount);
+            }
+        } catch (ArithmeticException e) {
+            return RejectReason.INVALID_AMOUNT;
         }
-        return true;
+        return null;
     }
 
-    private double calculateFee(Transaction tx) {
-        double in = 0;
-        for (Transaction.Input input : tx.getInputs()) {
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-            in = in + pool.getTxOutput(utxo).value;
+    // the sum of the output amounts of tx; throws ArithmeticException if an
+    // output is not a valid amount or the sum overflows
+    private static long totalAmount(Transaction tx) {
+        long out = 0;
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            out = Math.addExact(out, tx.amount(i));
         }
+        return out;
+    }
 
-        double out = 0;
-        for (Transaction.Output output : tx.getOutputs()) {
-            out = out + output.value;
+    // the fee of tx in base units, or Long.MIN_VALUE, which fails any fee
+    // check, if an input is no longer in the pool
+    private long calculateFee(Transaction tx) {
+        long in = 0;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.input(i);
+            Transaction.Output claimed = pool.getTxOutput(input.prevTxHash, input.outputIndex);
+            if (claimed == null) return Long.MIN_VALUE;
+            in = Math.addExact(in, claimed.getAmount());
         }
 
-        return out - in;
+        // the fee is what the inputs bring in beyond what the outputs pay out
+        return Math.subtractExact(in, totalAmount(tx));
     }
 
-    private double calculateTotalFees(Set<Transaction> txs) {
-        double total = 0;
+    private long calculateTotalFees(Set<Transaction> txs) {
+        long total = 0;
 
         for (Transaction tx : txs) {
-            total += calculateFee(tx);
+            total = Math.addExact(total, calculateFee(tx));
         }
 
         return total;
@@ -96,12 +447,21 @@ public class TxHandler {
 
 
 	private void updateUTXO(Transaction tx) {
+		updateUTXO(tx, pool, journal != null && journal.isRecording() ? journal : null);
+	}
+
+	// applies tx to <pool>, recording the changes in <undo> unless it is null
+	private static void updateUTXO(Transaction tx, UTXOPool pool, UndoJournal undo) {
 		byte[] hash = tx.getHash();
 
 		// remove all inputs
 		ArrayList<Transaction.Input> inputArray = tx.getInputs();
 		for (Transaction.Input in : inputArray) {
 			UTXO toRemove = new UTXO(in.prevTxHash, in.outputIndex);
+			if (undo != null) {
+				Transaction.Output spent = pool.getTxOutput(toRemove);
+				if (spent != null) undo.spent(toRemove, spent);
+			}
 			pool.removeUTXO(toRemove);
 		}
 
@@ -110,63 +470,520 @@ public class TxHandler {
 		int i = 0;
 		for (Transaction.Output out : outputArray) {
 			UTXO toAdd = new UTXO(hash, i);
+			if (undo != null) {
+				// an output replaced by a transaction with the same hash is
+				// put back too
+				Transaction.Output replaced = pool.getTxOutput(toAdd);
+				if (replaced != null) undo.spent(toAdd, replaced);
+				undo.created(toAdd);
+			}
 			pool.addUTXO(toAdd, out);
 			i++;
 		}	
 	}
 
+	/* Validates tx and, if it is valid, applies it to the pool; returns whether
+	 * it was accepted. Safe to call from many threads at once: over a
+	 * ConcurrentUTXOPool the inputs are spent with one atomic spendAll, so a
+	 * UTXO claimed by two racing transactions is spent by at most one of them.
+	 * Over any other pool the calls are serialized on this handler. Orphans
+	 * waiting for the outputs of tx are released afterwards, as in submit.
+	 */
+	public boolean acceptTx(Transaction tx) {
+		if (!applyTx(tx)) return false;
+		releaseOrphans(createdBy(tx));
+		return true;
+	}
+
+	// validates tx and applies it to the pool, atomically over a
+	// ConcurrentUTXOPool unless an epoch is being recorded, in which case the
+	// changes go through updateUTXO so that the journal sees them
+	private boolean applyTx(Transaction tx) {
+		UTXOPool current = pool;
+		if (!(current instanceof ConcurrentUTXOPool) || (journal != null && journal.isRecording())) {
+			synchronized (this) {
+				if (!isValidTx(tx)) return false;
+				updateUTXO(tx);
+				growFilter();
+				return true;
+			}
+		}
+
+		if (!isValidTx(tx)) return false;
+
+		ArrayList<UTXO> spent = new ArrayList<UTXO>(tx.numInputs());
+		for (Transaction.Input in : tx.getInputs()) {
+			spent.add(new UTXO(in.prevTxHash, in.outputIndex));
+		}
+		HashMap<UTXO, Transaction.Output> created = new HashMap<UTXO, Transaction.Output>();
+		for (int i = 0; i < tx.numOutputs(); i++) {
+			created.put(new UTXO(tx.getHash(), i), tx.getOutput(i));
+		}
+		if (!((ConcurrentUTXOPool) current).spendAll(spent, created)) return false;
+		growFilter();
+		return true;
+	}
+
+	/* Checks a single transaction as soon as it arrives. Returns ACCEPTED if it
+	 * was valid and has been applied to the pool, REJECTED if it is invalid,
+	 * and PENDING if it claims outputs that are not in the pool yet. Pending
+	 * transactions are kept in a bounded orphan pool, indexed by the outputs
+	 * they miss, and are validated and accepted as soon as those outputs
+	 * enter the pool, whether through submit, acceptTx, handleTxs or
+	 * rollback; the listener hears about them. When the orphan pool is full
+	 * the oldest orphan is dropped.
+	 */
+	public SubmitResult submit(Transaction tx) {
+		synchronized (orphans) {
+			if (orphans.containsKey(tx)) {
+				return SubmitResult.PENDING;
+			}
+		}
+
+		HashSet<UTXO> missing = new HashSet<UTXO>();
+		HashSet<UTXO> claimed = new HashSet<UTXO>();
+		for (Transaction.Input in : tx.getInputs()) {
+			UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+			if (!claimed.add(utxo)) {
+				return SubmitResult.REJECTED;
+			}
+			if (!pool.contains(utxo)) {
+				missing.add(utxo);
+			}
+		}
+
+		if (!missing.isEmpty()) {
+			if (!hasValidOutputs(tx)) {
+				return SubmitResult.REJECTED;
+			}
+			synchronized (orphans) {
+				// an output that entered the pool since it was looked up was
+				// released before this orphan could be found waiting for it
+				Iterator<UTXO> it = missing.iterator();
+				while (it.hasNext()) {
+					if (pool.contains(it.next())) it.remove();
+				}
+				if (!missing.isEmpty()) {
+					addOrphan(tx, missing);
+					return SubmitResult.PENDING;
+				}
+			}
+		}
+
+		if (!applyTx(tx)) {
+			return SubmitResult.REJECTED;
+		}
+		if (acceptListener != null) {
+			acceptListener.accepted(tx);
+		}
+		releaseOrphans(createdBy(tx));
+		return SubmitResult.ACCEPTED;
+	}
+
+	public void setAcceptListener(AcceptListener listener) {
+		acceptListener = listener;
+	}
+
+	// Bounds the number of pending transactions kept by submit
+	public void setMaxOrphans(int max) {
+		if (max < 0) throw new IllegalArgumentException("max must not be negative");
+		synchronized (orphans) {
+			maxOrphans = max;
+			while (orphans.size() > maxOrphans) {
+				evictOldestOrphan();
+			}
+		}
+	}
+
+	public int numOrphans() {
+		synchronized (orphans) {
+			return orphans.size();
+		}
+	}
+
+	// Drops every pending transaction
+	public void clearOrphans() {
+		synchronized (orphans) {
+			orphans.clear();
+			orphansByMissing.clear();
+		}
+	}
+
+	// a pending transaction and the outputs it still waits for
+	private static class Orphan {
+		final HashSet<UTXO> missing;
+
+		Orphan(HashSet<UTXO> missing) {
+			this.missing = missing;
+		}
+	}
+
+	private void addOrphan(Transaction tx, HashSet<UTXO> missing) {
+		if (maxOrphans == 0) return;
+		if (orphans.size() >= maxOrphans) {
+			evictOldestOrphan();
+		}
+		orphans.put(tx, new Orphan(missing));
+		for (UTXO utxo : missing) {
+			ArrayList<Transaction> waiting = orphansByMissing.get(utxo);
+			if (waiting == null) {
+				waiting = new ArrayList<Transaction>(1);
+				orphansByMissing.put(utxo, waiting);
+			}
+			waiting.add(tx);
+		}
+	}
+
+	private void evictOldestOrphan() {
+		Iterator<Map.Entry<Transaction, Orphan>> it = orphans.entrySet().iterator();
+		Map.Entry<Transaction, Orphan> eldest = it.next();
+		it.remove();
+		for (UTXO utxo : eldest.getValue().missing) {
+			ArrayList<Transaction> waiting = orphansByMissing.get(utxo);
+			waiting.remove(eldest.getKey());
+			if (waiting.isEmpty()) {
+				orphansByMissing.remove(utxo);
+			}
+		}
+	}
+
+	// rebuilds the pool's filter larger once it fills up. Called after each
+	// change by applyTx, holding this handler unless the pool is a
+	// ConcurrentUTXOPool, which rebuilds holding every stripe, and by
+	// handleTxs and rollback. Of two threads finding the filter full, only
+	// the first rebuilds it.
+	private void growFilter() {
+		UTXOFilter filter = pool.getFilter();
+		if (filter == null || !filter.isFull()) return;
+		synchronized (filterLock) {
+			filter = pool.getFilter();
+			if (filter != null && filter.isFull()) {
+				pool.enableFilter();
+			}
+		}
+	}
+
+	// the UTXOs of the outputs of tx
+	private static ArrayList<UTXO> createdBy(Transaction tx) {
+		ArrayList<UTXO> created = new ArrayList<UTXO>(tx.numOutputs());
+		for (int i = 0; i < tx.numOutputs(); i++) {
+			created.add(new UTXO(tx.getHash(), i));
+		}
+		return created;
+	}
+
+	// validates and applies every orphan whose last missing output is in
+	// <appeared> or was created by an orphan released before it. Orphans are
+	// validated only when their turn comes, after everything released before
+	// them has been applied; those that are no longer valid are dropped.
+	private void releaseOrphans(List<UTXO> appeared) {
+		synchronized (orphans) {
+			if (orphansByMissing.isEmpty()) return;
+			ArrayDeque<Transaction> released = new ArrayDeque<Transaction>();
+			markAppeared(appeared, released);
+			if (released.isEmpty()) return;
+			while (!released.isEmpty()) {
+				Transaction orphan = released.poll();
+				if (!applyTx(orphan)) continue;
+				if (acceptListener != null) {
+					acceptListener.accepted(orphan);
+				}
+				markAppeared(createdBy(orphan), released);
+			}
+		}
+	}
+
+	// takes <appeared> off the outputs the orphans wait for, adding those left
+	// waiting for nothing to <released>
+	private void markAppeared(List<UTXO> appeared, ArrayDeque<Transaction> released) {
+		for (UTXO created : appeared) {
+			ArrayList<Transaction> waiting = orphansByMissing.remove(created);
+			if (waiting == null) continue;
+			for (Transaction orphan : waiting) {
+				Orphan o = orphans.get(orphan);
+				o.missing.remove(created);
+				if (o.missing.isEmpty()) {
+					orphans.remove(orphan);
+					released.add(orphan);
+				}
+			}
+		}
+	}
+
 	/* Handles each epoch by receiving an unordered array of proposed 
 	 * transactions, checking each transaction for correctness, 
 	 * returning a mutually valid array of accepted transactions, 
 	 * and updating the current UTXO pool as appropriate.
+	 * With an undo journal set, the changes are recorded as one epoch, even if
+	 * handling fails part way through. Orphans waiting for the outputs of the
+	 * accepted transactions are released before the epoch ends, and recorded
+	 * with it, but are not part of the returned array. If the epoch cannot be
+	 * written to the journal's file, this throws once the pool has been
+	 * updated; the journal keeps the epoch, which can still be rolled back.
 	 */
 	public Transaction[] handleTxs(Transaction[] possibleTxs) {
-		TxHandler handle = new TxHandler(pool);
-		ArrayList<Transaction> acceptedTx = new ArrayList<Transaction>();
-		ArrayList<Transaction> toCheckAgain = new ArrayList<Transaction>();
-		int count = 1;
-		for (Transaction tx : possibleTxs) {
+		long start = metrics.isEnabled() ? System.nanoTime() : 0;
+		UndoJournal undo = journal;
+		if (undo != null) {
+			undo.begin();
+		}
+		Throwable failure = null;
+		try {
+			if (verificationMode == VerificationMode.PARALLEL) {
+				preverified = verifyEpochSignatures(possibleTxs);
+			}
+			ArrayList<Transaction> acceptedTx = acceptInDependencyOrder(possibleTxs);
+			growFilter();
 
-			// check is transaction is valid
-			if (!handle.isValidTx(tx)) {
-				toCheckAgain.add(tx);
-				continue;
+			ArrayList<UTXO> created = new ArrayList<UTXO>();
+			for (Transaction tx : acceptedTx) {
+				created.addAll(createdBy(tx));
 			}
+			releaseOrphans(created);
 
-			updateUTXO(tx);
-			acceptedTx.add(tx);
+			// change to array
+			Transaction[] acceptedArr = new Transaction[acceptedTx.size()];
+			acceptedArr = acceptedTx.toArray(acceptedArr);
+
+			if (metrics.isEnabled()) {
+				metrics.epoch(System.nanoTime() - start, possibleTxs.length, acceptedArr.length);
+			}
+			return acceptedArr;
+		} catch (RuntimeException | Error e) {
+			failure = e;
+			throw e;
+		} finally {
+			preverified = null;
+			if (undo != null) {
+				try {
+					undo.end();
+				} catch (IOException e) {
+					// the epoch is ended either way; a failure that stopped
+					// handling is the one reported
+					if (failure == null) throw new RuntimeException(e);
+					failure.addSuppressed(e);
+				}
+			}
 		}
+	}
+
+	/* Validates each transaction at most once, parents before children. The
+	 * in-epoch dependency graph is built once; a transaction becomes ready when
+	 * every in-epoch parent has been decided, and ready transactions are taken
+	 * in the order they were proposed. Transactions that claim outputs which
+	 * exist nowhere, or that sit on a dependency cycle, never become ready and
+	 * are rejected without being validated.
+	 */
+	private ArrayList<Transaction> acceptInDependencyOrder(Transaction[] proposed) {
+		// a transaction proposed twice, or an ImmutableTransaction equal to an
+		// earlier one, is only considered once
+		LinkedHashSet<Transaction> distinct = new LinkedHashSet<Transaction>(Arrays.asList(proposed));
+		Transaction[] possibleTxs = distinct.toArray(new Transaction[distinct.size()]);
 
+		HashMap<Transaction, HashSet<Transaction>> dep = TxHandlerUtil.constructTxDependencies(possibleTxs, pool);
 
-		// while one thing has been added to acceptedTx in last round
-		while (count >= 0) {
-            count = 0;
-			for (Transaction tx: toCheckAgain) {
-				if(!handle.isValidTx(tx)) {
-					continue;
+		// number of undecided in-epoch parents, and the reverse edges
+		IdentityHashMap<Transaction, Integer> waitingOn = new IdentityHashMap<Transaction, Integer>();
+		IdentityHashMap<Transaction, ArrayList<Transaction>> children = new IdentityHashMap<Transaction, ArrayList<Transaction>>();
+		for (Map.Entry<Transaction, HashSet<Transaction>> e : dep.entrySet()) {
+			int parents = 0;
+			for (Transaction parent : e.getValue()) {
+				// null stands for an output that is already in the pool
+				if (parent == null) continue;
+				parents++;
+				ArrayList<Transaction> c = children.get(parent);
+				if (c == null) {
+					c = new ArrayList<Transaction>();
+					children.put(parent, c);
 				}
-				count++;
+				c.add(e.getKey());
+			}
+			waitingOn.put(e.getKey(), parents);
+		}
+
+		ArrayDeque<Transaction> ready = new ArrayDeque<Transaction>();
+		for (Transaction tx : possibleTxs) {
+			Integer parents = waitingOn.get(tx);
+			if (parents != null && parents == 0) {
+				waitingOn.remove(tx);
+				ready.add(tx);
+			}
+		}
+		// whatever is still waiting had to be held back for an in-epoch parent
+		metrics.deferred(waitingOn.size());
+
+		// the order transactions are decided in does not depend on which are
+		// accepted: a rejected parent still releases its children, which
+		// will fail the UTXO lookup without reaching the signature check
+		ArrayList<Transaction> order = new ArrayList<Transaction>();
+		while (!ready.isEmpty()) {
+			Transaction tx = ready.poll();
+			order.add(tx);
+			ArrayList<Transaction> c = children.remove(tx);
+			if (c == null) continue;
+			for (Transaction child : c) {
+				Integer parents = waitingOn.get(child);
+				if (parents == null) continue;
+				if (parents == 1) {
+					waitingOn.remove(child);
+					ready.add(child);
+				} else {
+					waitingOn.put(child, parents - 1);
+				}
+			}
+		}
+
+		if (applyMode == ApplyMode.PARTITIONED && order.size() > 1) {
+			ArrayList<Transaction> acceptedTx = acceptPartitioned(order);
+			if (acceptedTx != null) return acceptedTx;
+		}
+
+		ArrayList<Transaction> acceptedTx = new ArrayList<Transaction>();
+		for (Transaction tx : order) {
+			if (isValidTx(tx)) {
 				updateUTXO(tx);
 				acceptedTx.add(tx);
-				toCheckAgain.remove(tx);
 			}
 		}
+		return acceptedTx;
+	}
 
+	/* Decides the transactions in <order> like the loop above, concurrently
+	 * for transactions that share no UTXO, spent or created. Each component
+	 * is decided in the relative order it has in <order>, against a snapshot
+	 * of the pool that only it changes; since nothing outside a component
+	 * touches its UTXOs, every transaction sees the same pool as in the
+	 * sequential loop. The snapshots are committed one after another once all
+	 * components are decided, in O(changes), and the pool is not touched at
+	 * all if any of them fails. Returns null, with the pool unchanged, if
+	 * interrupted.
+	 */
+	private ArrayList<Transaction> acceptPartitioned(ArrayList<Transaction> order) {
+		final Transaction[] txs = order.toArray(new Transaction[order.size()]);
+		int[] component = TxHandlerUtil.findComponents(txs);
+		LinkedHashMap<Integer, ArrayList<Integer>> groups = new LinkedHashMap<Integer, ArrayList<Integer>>();
+		for (int k = 0; k < txs.length; k++) {
+			ArrayList<Integer> g = groups.get(component[k]);
+			if (g == null) {
+				g = new ArrayList<Integer>();
+				groups.put(component[k], g);
+			}
+			g.add(k);
+		}
 
-		// change to array
-		Transaction[] acceptedArr = new Transaction[acceptedTx.size()];
-		acceptedArr = acceptedTx.toArray(acceptedArr);
+		// a few components per task, enough tasks to keep every core busy
+		final boolean[] accepted = new boolean[txs.length];
+		ArrayList<ArrayList<Integer>> all = new ArrayList<ArrayList<Integer>>(groups.values());
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		int chunk = Math.max(1, (all.size() + parallelism * 4 - 1) / (parallelism * 4));
+		ArrayList<Callable<SnapshotUTXOPool>> tasks = new ArrayList<Callable<SnapshotUTXOPool>>();
+		for (int start = 0; start < all.size(); start += chunk) {
+			final List<ArrayList<Integer>> mine = all.subList(start, Math.min(all.size(), start + chunk));
+			tasks.add(new Callable<SnapshotUTXOPool>() {
+				public SnapshotUTXOPool call() {
+					SnapshotUTXOPool snapshot = pool.snapshot();
+					for (ArrayList<Integer> g : mine) {
+						for (int k : g) {
+							if (validate(txs[k], snapshot) == null) {
+								updateUTXO(txs[k], snapshot, null);
+								accepted[k] = true;
+							}
+						}
+					}
+					return snapshot;
+				}
+			});
+		}
 
-		return acceptedArr;
+		ArrayList<SnapshotUTXOPool> snapshots = new ArrayList<SnapshotUTXOPool>();
+		if (tasks.size() == 1) {
+			try {
+				snapshots.add(tasks.get(0).call());
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		} else {
+			ExecutorService executor = applier != null ? applier : ForkJoinPool.commonPool();
+			try {
+				for (Future<SnapshotUTXOPool> f : executor.invokeAll(tasks)) {
+					snapshots.add(f.get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		UndoJournal undo = journal != null && journal.isRecording() ? journal : null;
+		for (SnapshotUTXOPool snapshot : snapshots) {
+			snapshot.commit(undo);
+		}
+
+		ArrayList<Transaction> acceptedTx = new ArrayList<Transaction>();
+		for (int k = 0; k < txs.length; k++) {
+			if (accepted[k]) acceptedTx.add(txs[k]);
+		}
+		return acceptedTx;
 	}
 
     public static class TxHandlerUtil {
-        public static HashMap<UTXO, Transaction> constructUTXOMapping(Transaction[] txs, UTXOPool pool) {
-            HashMap<UTXO, Transaction> map = new HashMap<UTXO, Transaction>();
+        // returns, for each transaction, a representative of its component:
+        // transactions linked, directly or not, by a UTXO that one of them
+        // spends or creates and the other spends or creates share one
+        public static int[] findComponents(Transaction[] txs) {
+            int[] root = new int[txs.length];
+            HashMap<UTXO, Integer> owner = new HashMap<UTXO, Integer>();
+            for (int k = 0; k < txs.length; k++) {
+                root[k] = k;
+                Transaction tx = txs[k];
+                for (Transaction.Input input : tx.getInputs()) {
+                    if (input.prevTxHash == null) continue;
+                    link(root, owner, new UTXO(input.prevTxHash, input.outputIndex), k);
+                }
+                if (tx.getHash() == null) continue;
+                for (int i = 0; i < tx.numOutputs(); i++) {
+                    link(root, owner, new UTXO(tx.getHash(), i), k);
+                }
+            }
+            for (int k = 0; k < txs.length; k++) {
+                root[k] = find(root, k);
+            }
+            return root;
+        }
+
+        private static void link(int[] root, HashMap<UTXO, Integer> owner, UTXO utxo, int k) {
+            Integer first = owner.get(utxo);
+            if (first == null) {
+                owner.put(utxo, k);
+            } else {
+                union(root, k, first);
+            }
+        }
 
-            for (UTXO utxo : pool.getAllUTXO()) {
-                map.put(utxo, null);
+        // union-find over indices, with path halving
+        static int find(int[] root, int k) {
+            while (root[k] != k) {
+                root[k] = root[root[k]];
+                k = root[k];
             }
+            return k;
+        }
+
+        static void union(int[] root, int a, int b) {
+            root[find(root, a)] = find(root, b);
+        }
+
+        public static HashMap<UTXO, Transaction> constructUTXOMapping(Transaction[] txs, UTXOPool pool) {
+            final HashMap<UTXO, Transaction> map = new HashMap<UTXO, Transaction>();
+
+            // read the pool in place rather than through a copy of its UTXOs
+            pool.forEach(new BiConsumer<UTXO, Transaction.Output>() {
+                public void accept(UTXO utxo, Transaction.Output out) {
+                    map.put(utxo, null);
+                }
+            });
 
             for (Transaction tx : txs) {
                 for (int i = 0; i < tx.getOutputs().size(); i++) {
@@ -178,8 +995,11 @@ public class TxHandler {
             return map;
         }
 
+        // maps each transaction to the in-epoch transactions whose outputs it
+        // claims, with null standing for an output already in the pool;
+        // transactions claiming an output that exists nowhere are left out
         public static HashMap<Transaction, HashSet<Transaction>> constructTxDependencies(Transaction[] txs, UTXOPool pool) {
-            HashMap<UTXO, Transaction> txForUtxo = constructUTXOMapping(txs, pool);
+            HashMap<UTXO, Transaction> txForUtxo = constructUTXOMapping(txs, new UTXOPool());
             HashMap<Transaction, HashSet<Transaction>> dep = new HashMap<Transaction, HashSet<Transaction>>();
 
             for (Transaction tx : txs) {
@@ -189,13 +1009,14 @@ public class TxHandler {
 
                 for (Transaction.Input input : tx.getInputs()) {
                     UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+                    Transaction parent = txForUtxo.get(utxo);
                     // this is an invalid tx because it consumes a utxo that doesn't exist
-                    if (!txForUtxo.containsKey(utxo)) {
+                    if (parent == null && !pool.contains(utxo)) {
                         dep.remove(tx);
                         break;
                     }
 
-                    dep.get(tx).add(txForUtxo.get(utxo));
+                    dep.get(tx).add(parent);
                 }
             }
 
@@ -254,12 +1075,14 @@ public class TxHandler {
         }
 
         // construct the conflict graph
+        // two transactions conflict when they spend the same output
         public static HashMap<Transaction, HashSet<Transaction>> findConflicts(Transaction[] txs) {
-            HashMap<Transaction.Input, HashSet<Transaction>> consumes = new HashMap<Transaction.Input, HashSet<Transaction>>();
+            HashMap<UTXO, HashSet<Transaction>> consumes = new HashMap<UTXO, HashSet<Transaction>>();
             for (Transaction tx : txs) {
                 for (Transaction.Input input : tx.getInputs()) {
-                    if (!consumes.containsKey(input)) consumes.put(input, new HashSet<Transaction>());
-                    consumes.get(input).add(tx);
+                    UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+                    if (!consumes.containsKey(utxo)) consumes.put(utxo, new HashSet<Transaction>());
+                    consumes.get(utxo).add(tx);
                 }
             }
 
@@ -284,7 +1107,15 @@ public class TxHandler {
 
     // find if the txSet is valid
     public boolean checkIfValid(HashSet<Transaction> txSet) {
-        UTXOPool poolCopy = new UTXOPool(pool);
+        SnapshotUTXOPool poolCopy = pool.snapshot();
+        try {
+            return checkIfValid(txSet, poolCopy);
+        } finally {
+            poolCopy.discard();
+        }
+    }
+
+    private boolean checkIfValid(HashSet<Transaction> txSet, UTXOPool poolCopy) {
         UTXOPool newUTXO = new UTXOPool();
         for (Transaction tx : txSet) {
             if (!hasValidOutputs(tx)) {
@@ -0,0 +1,43 @@
+/* 
+ * TxMetrics.java
+ * 
+ * This interface receives measurements from the validation hot paths of
+ * TxHandler. Callers only take timestamps when isEnabled() is true, so the
+ * NONE implementation costs one predictable branch per measurement point.
+ */
+
+public interface TxMetrics {
+   
+   // Records nothing; the default of every TxHandler
+   TxMetrics NONE = new TxMetrics() {
+      public boolean isEnabled() { return false; }
+      public void signatureVerified(long nanos) { }
+      public void rawDataSerialized(long nanos) { }
+      public void utxoLookup(long nanos) { }
+      public void deferred(int txs) { }
+      public void rejected(RejectReason reason) { }
+      public void epoch(long nanos, int proposed, int accepted) { }
+   };
+   
+   // Returns whether measurements should be taken at all
+   boolean isEnabled();
+   
+   // One RSA signature check took <nanos>
+   void signatureVerified(long nanos);
+   
+   // One getRawDataToSign call took <nanos>
+   void rawDataSerialized(long nanos);
+   
+   // One UTXO pool lookup took <nanos>
+   void utxoLookup(long nanos);
+   
+   // <txs> transactions of an epoch had to wait for in-epoch parents before
+   // they could be validated
+   void deferred(int txs);
+   
+   // A transaction failed validation for <reason>
+   void rejected(RejectReason reason);
+   
+   // handleTxs took <nanos> to accept <accepted> of <proposed> transactions
+   void epoch(long nanos, int proposed, int accepted);
+}
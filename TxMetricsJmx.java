@@ -0,0 +1,66 @@
+/* 
+ * TxMetricsJmx.java
+ * 
+ * This class publishes a CountingTxMetrics as a standard MBean
+ */
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class TxMetricsJmx implements TxMetricsJmxMBean {
+   
+   private final CountingTxMetrics metrics;
+   
+   public TxMetricsJmx(CountingTxMetrics metrics) {
+      this.metrics = metrics;
+   }
+   
+   // Registers <metrics> with the platform MBean server under <name>, for
+   // example "btc:type=TxHandler", and returns the registered adapter
+   public static TxMetricsJmx register(CountingTxMetrics metrics, String name) throws JMException {
+      TxMetricsJmx bean = new TxMetricsJmx(metrics);
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(bean, new ObjectName(name));
+      return bean;
+   }
+   
+   // Removes the MBean registered under <name>
+   public static void unregister(String name) throws JMException {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+   }
+   
+   public long getSignatureChecks() { return metrics.getSignatureLatency().getCount(); }
+   public long getSignatureP50Nanos() { return metrics.getSignatureLatency().getPercentile(0.5); }
+   public long getSignatureP99Nanos() { return metrics.getSignatureLatency().getPercentile(0.99); }
+   public long getSignatureMaxNanos() { return metrics.getSignatureLatency().getMax(); }
+   
+   public long getSerializations() { return metrics.getSerializationLatency().getCount(); }
+   public long getSerializationP50Nanos() { return metrics.getSerializationLatency().getPercentile(0.5); }
+   public long getSerializationP99Nanos() { return metrics.getSerializationLatency().getPercentile(0.99); }
+   
+   public long getUtxoLookups() { return metrics.getLookupLatency().getCount(); }
+   public long getUtxoLookupP50Nanos() { return metrics.getLookupLatency().getPercentile(0.5); }
+   public long getUtxoLookupP99Nanos() { return metrics.getLookupLatency().getPercentile(0.99); }
+   
+   public long getEpochs() { return metrics.getEpochLatency().getCount(); }
+   public long getEpochP50Nanos() { return metrics.getEpochLatency().getPercentile(0.5); }
+   public long getEpochP99Nanos() { return metrics.getEpochLatency().getPercentile(0.99); }
+   public long getEpochMaxNanos() { return metrics.getEpochLatency().getMax(); }
+   
+   public long getProposed() { return metrics.getProposed(); }
+   public long getAccepted() { return metrics.getAccepted(); }
+   public long getDeferred() { return metrics.getDeferred(); }
+   
+   public long getRejectedMissingUtxo() { return metrics.getRejected(RejectReason.MISSING_UTXO); }
+   public long getRejectedBadSignature() { return metrics.getRejected(RejectReason.BAD_SIGNATURE); }
+   public long getRejectedDoubleClaim() { return metrics.getRejected(RejectReason.DOUBLE_CLAIM); }
+   public long getRejectedNegativeOutput() { return metrics.getRejected(RejectReason.NEGATIVE_OUTPUT); }
+   public long getRejectedInsufficientFee() { return metrics.getRejected(RejectReason.INSUFFICIENT_FEE); }
+   public long getRejectedInvalidAmount() { return metrics.getRejected(RejectReason.INVALID_AMOUNT); }
+   
+   public void reset() {
+      metrics.reset();
+   }
+}
@@ -0,0 +1,40 @@
+/* 
+ * TxMetricsJmxMBean.java
+ * 
+ * The management interface TxMetricsJmx exposes over JMX; latencies are in
+ * nanoseconds
+ */
+
+public interface TxMetricsJmxMBean {
+   
+   long getSignatureChecks();
+   long getSignatureP50Nanos();
+   long getSignatureP99Nanos();
+   long getSignatureMaxNanos();
+   
+   long getSerializations();
+   long getSerializationP50Nanos();
+   long getSerializationP99Nanos();
+   
+   long getUtxoLookups();
+   long getUtxoLookupP50Nanos();
+   long getUtxoLookupP99Nanos();
+   
+   long getEpochs();
+   long getEpochP50Nanos();
+   long getEpochP99Nanos();
+   long getEpochMaxNanos();
+   
+   long getProposed();
+   long getAccepted();
+   long getDeferred();
+   
+   long getRejectedMissingUtxo();
+   long getRejectedBadSignature();
+   long getRejectedDoubleClaim();
+   long getRejectedNegativeOutput();
+   long getRejectedInsufficientFee();
+   long getRejectedInvalidAmount();
+   
+   void reset();
+}
@@ -0,0 +1,146 @@
+/*
+ * TxWireFormat.java
+ *
+ * This class represents the binary format transactions and epoch batches are
+ * stored and sent in. A transaction record is
+ *
+ *    int length                 bytes in the rest of the record
+ *    int inputs, int outputs
+ *    per input:  int hash length, int signature length   (-1 for null)
+ *    per output: int exponent length, int modulus length
+ *    body                       exactly the bytes of getRawTx()
+ *
+ * and a batch is the int MAGIC, the int number of records and the records.
+ * All ints are big-endian, as in getRawTx. Because the body is the raw
+ * transaction, the hash and the data each input signs are slices of the
+ * record, and the reader never re-encodes anything.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class TxWireFormat {
+
+   // First int of a batch: "TXB1"
+   public static final int MAGIC = 0x54584231;
+
+   static final int HEADER_BYTES = 12;
+   static final int ENTRY_BYTES = 8;
+
+   private TxWireFormat() {
+   }
+
+   // Returns the number of bytes write(tx, ...) takes for <tx>
+   public static int encodedLength(Transaction tx) {
+      int length = HEADER_BYTES + (tx.numInputs() + tx.numOutputs()) * ENTRY_BYTES;
+      for (int i = 0; i < tx.numInputs(); i++) {
+         Transaction.Input in = tx.input(i);
+         length += 4 + lengthOf(in.prevTxHash) + lengthOf(in.signature);
+      }
+      for (int i = 0; i < tx.numOutputs(); i++) {
+         RSAKey address = tx.output(i).address;
+         length += 8 + byteLength(address.getExponent().bitLength()) + byteLength(address.getModulus().bitLength());
+      }
+      return length;
+   }
+
+   // Writes the record of <tx> at the position of <out>, advancing it
+   public static void write(Transaction tx, ByteBuffer out) {
+      int start = out.position();
+      out.putInt(0);
+      out.putInt(tx.numInputs());
+      out.putInt(tx.numOutputs());
+      for (int i = 0; i < tx.numInputs(); i++) {
+         Transaction.Input in = tx.input(i);
+         out.putInt(in.prevTxHash == null ? -1 : in.prevTxHash.length);
+         out.putInt(in.signature == null ? -1 : in.signature.length);
+      }
+      for (int i = 0; i < tx.numOutputs(); i++) {
+         RSAKey address = tx.output(i).address;
+         out.putInt(byteLength(address.getExponent().bitLength()));
+         out.putInt(byteLength(address.getModulus().bitLength()));
+      }
+      out.put(tx.getRawTx());
+      out.putInt(start, out.position() - start - 4);
+   }
+
+   // Returns the record of <tx>
+   public static byte[] encode(Transaction tx) {
+      ByteBuffer out = ByteBuffer.allocate(encodedLength(tx));
+      write(tx, out);
+      return out.array();
+   }
+
+   // Returns a batch holding <txs> in order
+   public static ByteBuffer encodeBatch(Transaction[] txs) {
+      int length = 8;
+      for (Transaction tx : txs)
+         length += encodedLength(tx);
+      ByteBuffer out = ByteBuffer.allocate(length);
+      out.putInt(MAGIC);
+      out.putInt(txs.length);
+      for (Transaction tx : txs)
+         write(tx, out);
+      out.flip();
+      return out;
+   }
+
+   // Writes a batch holding <txs> to <file>, replacing its contents
+   public static void writeBatch(Transaction[] txs, File file) throws IOException {
+      ByteBuffer batch = encodeBatch(txs);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         raf.setLength(0);
+         FileChannel channel = raf.getChannel();
+         while (batch.hasRemaining())
+            channel.write(batch);
+      } finally {
+         raf.close();
+      }
+   }
+
+   // Reads the record at the position of <in>, advancing past it. Only the
+   // lengths are read; the returned view reads everything else from <in>,
+   // which must not change while the view is in use.
+   public static WireTransaction read(ByteBuffer in) {
+      return WireTransaction.parse(in);
+   }
+
+   // Reads a whole batch from the position of <in>, as views into <in>
+   public static Transaction[] readBatch(ByteBuffer in) {
+      if (in.remaining() < 8 || in.getInt(in.position()) != MAGIC)
+         throw new IllegalArgumentException("not a transaction batch");
+      int count = in.getInt(in.position() + 4);
+      if (count < 0 || count > (in.remaining() - 8) / (HEADER_BYTES + 4))
+         throw new IllegalArgumentException("malformed transaction batch");
+      in.position(in.position() + 8);
+      Transaction[] txs = new Transaction[count];
+      for (int i = 0; i < count; i++)
+         txs[i] = read(in);
+      return txs;
+   }
+
+   // Maps <file> read-only and reads the batch in it; the views stay valid
+   // for as long as they are reachable
+   public static Transaction[] readBatch(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         FileChannel channel = raf.getChannel();
+         return readBatch(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      } finally {
+         raf.close();
+      }
+   }
+
+   private static int lengthOf(byte[] a) {
+      return a == null ? 0 : a.length;
+   }
+
+   // Length of BigInteger.toByteArray() for a number of <bits> bits
+   private static int byteLength(int bits) {
+      return bits / 8 + 1;
+   }
+}
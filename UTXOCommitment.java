@@ -0,0 +1,117 @@
+/*
+ * UTXOCommitment.java
+ *
+ * This class represents a running commitment to the contents of a UTXO pool:
+ * the sum, modulo 2^256, of the SHA-256 digests of its (UTXO, output)
+ * entries. Each change adds or subtracts one digest, and since addition is
+ * commutative, pools holding the same entries have the same commitment
+ * however they got there.
+ */
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.BiConsumer;
+
+public class UTXOCommitment {
+
+   // Length in bytes of a commitment
+   public static final int BYTES = 32;
+
+   // How the value of an output is encoded in its entry: as its amount, or,
+   // for a value that is not a valid amount, as its raw bits
+   private static final byte AMOUNT = 1;
+   private static final byte RAW_VALUE = 2;
+
+   // The sum as four big-endian 64-bit limbs, most significant first
+   private final long[] sum = new long[BYTES / 8];
+
+   // Created by UTXOPool.enableCommitment()
+   UTXOCommitment() {
+   }
+
+   // Returns the commitment of the current contents of <pool>, in O(size())
+   static UTXOCommitment over(UTXOPool pool) {
+      final UTXOCommitment c = new UTXOCommitment();
+      pool.forEach(new BiConsumer<UTXO, Transaction.Output>() {
+         public void accept(UTXO ut, Transaction.Output txOut) {
+            c.add(ut, null, txOut);
+         }
+      });
+      return c;
+   }
+
+   // Returns the commitment as BYTES big-endian bytes; the empty pool commits
+   // to all zeros
+   public synchronized byte[] getValue() {
+      ByteBuffer b = ByteBuffer.allocate(BYTES);
+      for (long limb : sum)
+         b.putLong(limb);
+      return b.array();
+   }
+
+   // Records that <utxo> maps to <txOut> instead of <old>; either may be null
+   void add(UTXO utxo, Transaction.Output old, Transaction.Output txOut) {
+      byte[] out = old == null ? null : digest(utxo, old);
+      byte[] in = txOut == null ? null : digest(utxo, txOut);
+      synchronized (this) {
+         if (out != null)
+            accumulate(out, true);
+         if (in != null)
+            accumulate(in, false);
+      }
+   }
+
+   // Records that <utxo>, which mapped to <old>, was removed; nothing if
+   // <old> is null
+   void remove(UTXO utxo, Transaction.Output old) {
+      if (old == null)
+         return;
+      byte[] out = digest(utxo, old);
+      synchronized (this) {
+         accumulate(out, true);
+      }
+   }
+
+   // Adds <digest> to the sum, or subtracts it by adding its two's complement
+   private void accumulate(byte[] digest, boolean subtract) {
+      ByteBuffer d = ByteBuffer.wrap(digest);
+      long carry = subtract ? 1 : 0;
+      for (int i = sum.length - 1; i >= 0; i--) {
+         long x = d.getLong(i * 8);
+         if (subtract)
+            x = ~x;
+         long s = sum[i] + x;
+         long c = Long.compareUnsigned(s, x) < 0 ? 1 : 0;
+         long t = s + carry;
+         if (Long.compareUnsigned(t, s) < 0)
+            c = 1;
+         sum[i] = t;
+         carry = c;
+      }
+   }
+
+   // SHA-256 of the entry (utxo, txOut). Every field is length-prefixed or of
+   // fixed length, so different entries never encode the same way. The
+   // amount is used rather than the value bits, so that a pool storing
+   // amounts commits to the same entries as one storing the outputs.
+   private static byte[] digest(UTXO utxo, Transaction.Output txOut) {
+      byte[] txHash = utxo.getTxHash();
+      byte[] address = txOut.address == null ? new byte[0] : txOut.encodedAddress();
+      ByteBuffer entry = ByteBuffer.allocate(4 + txHash.length + 4 + 1 + 8 + 4 + 4 + address.length);
+      entry.putInt(txHash.length).put(txHash).putInt(utxo.getIndex());
+      try {
+         long amount = txOut.getAmount();
+         entry.put(AMOUNT).putLong(amount);
+      } catch (ArithmeticException e) {
+         entry.put(RAW_VALUE).putLong(Double.doubleToRawLongBits(txOut.value));
+      }
+      int exponentLength = txOut.address == null ? -1 : txOut.address.getExponent().bitLength() / 8 + 1;
+      entry.putInt(exponentLength).putInt(address.length).put(address);
+      try {
+         return MessageDigest.getInstance("SHA-256").digest(entry.array());
+      } catch (NoSuchAlgorithmException x) {
+         throw new IllegalStateException(x);
+      }
+   }
+}
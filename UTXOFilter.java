@@ -0,0 +1,263 @@
+/*
+ * UTXOFilter.java
+ *
+ * This class represents a cuckoo filter over the UTXOs of a pool: a compact
+ * table of 16-bit fingerprints that answers "certainly not in the pool" for
+ * most UTXOs that are not, without allocating and without touching the pool,
+ * and that supports removals as well as additions
+ */
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+public class UTXOFilter {
+
+   // Fingerprints per bucket; each may sit in one of two buckets
+   private static final int BUCKET_SIZE = 4;
+   private static final int MAX_KICKS = 500;
+   private static final int MIN_BUCKETS = 16;
+
+   // Share of the slots in use beyond which the pool should rebuild the filter
+   // larger; inserts start failing at around 95%
+   private static final double MAX_LOAD = 0.9;
+
+   // Bucket i holds the fingerprints in table[4i..4i+3]; 0 marks a free slot
+   private final short[] table;
+   private final int mask;
+   private int count;
+
+   // Set when a fingerprint could not be placed; from then on every lookup
+   // answers "maybe" until the pool rebuilds the filter
+   private volatile boolean saturated;
+
+   // Writers take the write lock; readers read optimistically and only lock
+   // if a write, which may move a fingerprint between buckets, ran meanwhile
+   private final StampedLock lock = new StampedLock();
+   private int random = 0x2545F491;
+
+   private final LongAdder rejected = new LongAdder();
+   private final LongAdder falsePositives = new LongAdder();
+
+   // Created by UTXOPool.enableFilter(), with room for <expected> UTXOs
+   UTXOFilter(int expected) {
+      int buckets = MIN_BUCKETS;
+      while (buckets * BUCKET_SIZE * MAX_LOAD < expected)
+         buckets <<= 1;
+      table = new short[buckets * BUCKET_SIZE];
+      mask = buckets - 1;
+   }
+
+   // Returns false if (txHash, index) is certainly not in the pool, and true
+   // if it may be. A null hash may always be.
+   public boolean mightContain(byte[] txHash, int index) {
+      if (txHash == null)
+         return true;
+      long h = hash(txHash, index);
+      short fp = fingerprint(h);
+      int i1 = (int) h & mask;
+      int i2 = alternate(i1, fp);
+      long stamp = lock.tryOptimisticRead();
+      boolean found = saturated || inBucket(i1, fp) || inBucket(i2, fp);
+      if (!lock.validate(stamp)) {
+         stamp = lock.readLock();
+         try {
+            found = saturated || inBucket(i1, fp) || inBucket(i2, fp);
+         } finally {
+            lock.unlockRead(stamp);
+         }
+      }
+      if (!found)
+         rejected.increment();
+      return found;
+   }
+
+   // Returns the number of UTXOs in the filter
+   public int size() {
+      long stamp = lock.readLock();
+      try {
+         return count;
+      } finally {
+         lock.unlockRead(stamp);
+      }
+   }
+
+   // Returns the number of fingerprint slots
+   public int capacity() {
+      return table.length;
+   }
+
+   // Returns whether a fingerprint could not be placed, which makes every
+   // lookup answer "maybe"
+   public boolean isSaturated() {
+      return saturated;
+   }
+
+   // Returns the false-positive rate expected from the current load: the
+   // chance that a UTXO not in the pool matches one of the fingerprints in
+   // its two buckets
+   public double expectedFalsePositiveRate() {
+      if (saturated)
+         return 1;
+      double load = (double) size() / capacity();
+      return 1 - Math.pow(1 - 1.0 / 0xffff, 2 * BUCKET_SIZE * load);
+   }
+
+   // Returns the number of lookups the filter answered on its own
+   public long getRejected() {
+      return rejected.sum();
+   }
+
+   // Returns the number of lookups the filter let through for UTXOs that
+   // turned out not to be in the pool
+   public long getFalsePositives() {
+      return falsePositives.sum();
+   }
+
+   // Returns the share of lookups of UTXOs not in the pool that the filter
+   // let through, as observed so far, or 0 if there were none
+   public double getFalsePositiveRate() {
+      long fp = getFalsePositives();
+      long total = fp + getRejected();
+      return total == 0 ? 0 : (double) fp / total;
+   }
+
+   // Whether the pool should rebuild the filter larger
+   boolean isFull() {
+      return saturated || size() > table.length * MAX_LOAD;
+   }
+
+   // Counts a lookup let through for a UTXO that was not in the pool
+   void falsePositive() {
+      falsePositives.increment();
+   }
+
+   // Adds (txHash, index), relocating fingerprints as needed
+   void add(byte[] txHash, int index) {
+      long h = hash(txHash, index);
+      short fp = fingerprint(h);
+      int i = (int) h & mask;
+      long stamp = lock.writeLock();
+      try {
+         if (saturated)
+            return;
+         if (place(i, fp) || place(alternate(i, fp), fp)) {
+            count++;
+            return;
+         }
+         if ((nextRandom() & 1) != 0)
+            i = alternate(i, fp);
+         for (int kick = 0; kick < MAX_KICKS; kick++) {
+            int slot = i * BUCKET_SIZE + (nextRandom() & (BUCKET_SIZE - 1));
+            short victim = table[slot];
+            table[slot] = fp;
+            fp = victim;
+            i = alternate(i, fp);
+            if (place(i, fp)) {
+               count++;
+               return;
+            }
+         }
+         // the last victim has nowhere to go; only a filter that says "maybe"
+         // to everything stays correct without it
+         saturated = true;
+      } finally {
+         lock.unlockWrite(stamp);
+      }
+   }
+
+   // Removes one fingerprint of (txHash, index), which must have been added
+   void remove(byte[] txHash, int index) {
+      long h = hash(txHash, index);
+      short fp = fingerprint(h);
+      int i1 = (int) h & mask;
+      long stamp = lock.writeLock();
+      try {
+         if (saturated)
+            return;
+         if (clear(i1, fp) || clear(alternate(i1, fp), fp))
+            count--;
+      } finally {
+         lock.unlockWrite(stamp);
+      }
+   }
+
+   private boolean inBucket(int bucket, short fp) {
+      int base = bucket * BUCKET_SIZE;
+      return table[base] == fp || table[base + 1] == fp || table[base + 2] == fp || table[base + 3] == fp;
+   }
+
+   private boolean place(int bucket, short fp) {
+      int base = bucket * BUCKET_SIZE;
+      for (int s = base; s < base + BUCKET_SIZE; s++) {
+         if (table[s] == 0) {
+            table[s] = fp;
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private boolean clear(int bucket, short fp) {
+      int base = bucket * BUCKET_SIZE;
+      for (int s = base; s < base + BUCKET_SIZE; s++) {
+         if (table[s] == fp) {
+            table[s] = 0;
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // The other bucket of <fp>; alternate(alternate(i, fp), fp) == i
+   private int alternate(int bucket, short fp) {
+      return (bucket ^ (fp * 0x5bd1e995)) & mask;
+   }
+
+   // xorshift; only used to pick the fingerprint to kick out
+   private int nextRandom() {
+      int x = random;
+      x ^= x << 13;
+      x ^= x >>> 17;
+      x ^= x << 5;
+      random = x;
+      return x;
+   }
+
+   private static short fingerprint(long h) {
+      short fp = (short) (h >>> 48);
+      return fp == 0 ? 1 : fp;
+   }
+
+   // Transaction hashes are already uniformly distributed, so their first and
+   // last eight bytes mixed with the index are enough; other lengths are
+   // hashed byte by byte
+   private static long hash(byte[] txHash, int index) {
+      int n = txHash.length;
+      long h = n * 0x9E3779B97F4A7C15L ^ index;
+      if (n >= 16) {
+         h ^= readLong(txHash, 0);
+         h = mix(h) ^ readLong(txHash, n - 8);
+      } else {
+         for (int i = 0; i < n; i++)
+            h = (h ^ (txHash[i] & 0xff)) * 0x100000001b3L;
+      }
+      return mix(h);
+   }
+
+   // The finalizer of MurmurHash3
+   private static long mix(long h) {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }
+
+   private static long readLong(byte[] b, int off) {
+      return ((long) b[off] << 56) | ((long) (b[off + 1] & 0xff) << 48)
+         | ((long) (b[off + 2] & 0xff) << 40) | ((long) (b[off + 3] & 0xff) << 32)
+         | ((long) (b[off + 4] & 0xff) << 24) | ((b[off + 5] & 0xff) << 16)
+         | ((b[off + 6] & 0xff) << 8) | (b[off + 7] & 0xff);
+   }
+}
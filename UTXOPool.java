@@ -5,9 +5,17 @@
  * to their corresponding transction outputs
  */
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class UTXOPool {
    
@@ -15,6 +23,18 @@ public class UTXOPool {
    // transaction output
    private HashMap<UTXO, Transaction.Output> H;
    
+   // Index from address to UTXOs, kept up to date by addUTXO and removeUTXO
+   // of every implementation; null while disabled
+   private volatile AddressIndex addressIndex;
+   
+   // Running commitment to the contents of the pool, kept up to date the same
+   // way; null while disabled
+   private volatile UTXOCommitment commitment;
+   
+   // Cuckoo filter answering most lookups of UTXOs that are not in the pool,
+   // kept up to date the same way; null while disabled
+   private volatile UTXOFilter filter;
+   
    // Creates a new empty UTXOPool
    public UTXOPool() {
       H = new HashMap<UTXO, Transaction.Output>();
@@ -22,19 +42,177 @@ public class UTXOPool {
    
    // Creates a new UTXOPool that is a copy of <uPool>
    public UTXOPool(UTXOPool uPool) {
-      H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+      if (uPool.getClass() == UTXOPool.class) {
+         H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+      } else {
+         H = new HashMap<UTXO, Transaction.Output>(Math.max(16, uPool.size() * 4 / 3));
+         uPool.forEach(new BiConsumer<UTXO, Transaction.Output>() {
+            public void accept(UTXO ut, Transaction.Output txOut) {
+               H.put(ut, txOut);
+            }
+         });
+      }
+   }
+   
+   // Returns a copy of this pool backed by the same kind of storage. Subclasses
+   // that keep their UTXOs elsewhere must override this.
+   public UTXOPool copy() {
+      return new UTXOPool(this);
+   }
+   
+   // Returns a snapshot of this pool that shares its contents instead of
+   // copying them. Changes to the snapshot cost O(changes) and stay out of this
+   // pool until the snapshot is committed; this pool must not be modified while
+   // the snapshot is open, except by committing a sibling snapshot whose
+   // changes touch no UTXO the open one has read or changed.
+   public SnapshotUTXOPool snapshot() {
+      return new SnapshotUTXOPool(this);
    }
    
    // Adds a mapping from UTXO <utxo> to transaction output <txOut> to the pool
    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+      if (tracking())
+         adding(utxo, H.get(utxo), txOut);
       H.put(utxo, txOut);
    }
    
    // Removes the UTXO <utxo> from the pool 
    public void removeUTXO(UTXO utxo) {
+      if (tracking())
+         removing(utxo, H.get(utxo));
       H.remove(utxo);
    }
    
+   // Builds an index from each address to its UTXOs and balance over the
+   // current contents of the pool, in O(size()), and keeps it up to date from
+   // then on. Must not run concurrently with changes to the pool. Copies of
+   // the pool do not have the index.
+   public void enableAddressIndex() {
+      final AddressIndex index = new AddressIndex();
+      forEach(new BiConsumer<UTXO, Transaction.Output>() {
+         public void accept(UTXO ut, Transaction.Output txOut) {
+            index.add(ut, null, txOut);
+         }
+      });
+      addressIndex = index;
+   }
+   
+   // Drops the address index; changes then cost nothing extra again
+   public void disableAddressIndex() {
+      addressIndex = null;
+   }
+   
+   // Returns the address index, or null if it is not enabled
+   public AddressIndex getAddressIndex() {
+      return addressIndex;
+   }
+   
+   // Computes the commitment of the current contents of the pool, in
+   // O(size()), and keeps it up to date from then on at the cost of one
+   // SHA-256 per change. Must not run concurrently with changes to the pool.
+   // Copies of the pool do not keep the commitment.
+   public void enableCommitment() {
+      commitment = UTXOCommitment.over(this);
+   }
+   
+   // Drops the running commitment
+   public void disableCommitment() {
+      commitment = null;
+   }
+   
+   // Returns a UTXOCommitment.BYTES-long commitment to the (UTXO, output)
+   // entries of the pool, equal for any two pools holding the same entries
+   // whatever their kind and however the entries were added. Answered in
+   // O(1) once enableCommitment() was called, and with a pass over the pool
+   // otherwise. While changes run concurrently it may reflect only some of
+   // them.
+   public byte[] getCommitment() {
+      UTXOCommitment c = commitment;
+      return c != null ? c.getValue() : UTXOCommitment.over(this).getValue();
+   }
+   
+   // Returns whether the commitment is kept up to date
+   public boolean hasCommitment() {
+      return commitment != null;
+   }
+   
+   // Builds a cuckoo filter over the UTXOs in the pool, with room for twice
+   // as many, and puts it in front of the lookups that take a hash and an
+   // index, which the handlers use: a UTXO the filter rules out is reported
+   // missing without allocating or reaching the storage. Must not run
+   // concurrently with changes to the pool, unless the pool says otherwise;
+   // call it again to rebuild a filter that isFull(). Copies of the pool do
+   // not have the filter.
+   public void enableFilter() {
+      final UTXOFilter f = new UTXOFilter(2 * size());
+      forEach(new BiConsumer<UTXO, Transaction.Output>() {
+         public void accept(UTXO ut, Transaction.Output txOut) {
+            f.add(ut.getTxHash(), ut.getIndex());
+         }
+      });
+      filter = f;
+   }
+   
+   // Drops the filter
+   public void disableFilter() {
+      filter = null;
+   }
+   
+   // Returns the filter, or null if it is not enabled
+   public UTXOFilter getFilter() {
+      return filter;
+   }
+   
+   // Returns false if (txHash, index) is certainly not in the pool, and true
+   // if it may be; always true without a filter
+   public boolean mightContain(byte[] txHash, int index) {
+      UTXOFilter f = filter;
+      return f == null || f.mightContain(txHash, index);
+   }
+   
+   // Called by a lookup that mightContain() let through and that found
+   // nothing, to count the filter's false positives
+   protected final void notFound() {
+      UTXOFilter f = filter;
+      if (f != null)
+         f.falsePositive();
+   }
+   
+   // Whether addUTXO and removeUTXO must report each change through adding()
+   // and removing(); when false they must not even look up the old output
+   protected final boolean tracking() {
+      return addressIndex != null || commitment != null || filter != null;
+   }
+   
+   // Called by addUTXO, while tracking(), before <utxo> is mapped to <txOut>
+   // in place of <old>, the output it maps to now or null. If this throws,
+   // addUTXO must leave the pool unchanged.
+   protected final void adding(UTXO utxo, Transaction.Output old, Transaction.Output txOut) {
+      AddressIndex index = addressIndex;
+      if (index != null)
+         index.add(utxo, old, txOut);
+      UTXOCommitment c = commitment;
+      if (c != null)
+         c.add(utxo, old, txOut);
+      UTXOFilter f = filter;
+      if (f != null && old == null)
+         f.add(utxo.getTxHash(), utxo.getIndex());
+   }
+   
+   // Called by removeUTXO, while tracking(), before <utxo> is removed; <old>
+   // is the output it maps to now, or null if it is not in the pool
+   protected final void removing(UTXO utxo, Transaction.Output old) {
+      AddressIndex index = addressIndex;
+      if (index != null)
+         index.remove(utxo, old);
+      UTXOCommitment c = commitment;
+      if (c != null)
+         c.remove(utxo, old);
+      UTXOFilter f = filter;
+      if (f != null && old != null)
+         f.remove(utxo.getTxHash(), utxo.getIndex());
+   }
+   
    // Returns the transaction output corresponding to UTXO <utxo>, or null if 
    // <utxo> is not in the pool.
    public Transaction.Output getTxOutput(UTXO ut) {
@@ -46,6 +224,33 @@ public class UTXOPool {
       return H.containsKey(utxo);
    }
    
+   // Same as getTxOutput(new UTXO(txHash, index)); subclasses may answer
+   // without allocating a UTXO. Asks the filter first, if there is one.
+   public Transaction.Output getTxOutput(byte[] txHash, int index) {
+      if (!mightContain(txHash, index))
+         return null;
+      Transaction.Output txOut = getTxOutput(new UTXO(txHash, index));
+      if (txOut == null)
+         notFound();
+      return txOut;
+   }
+   
+   // Same as contains(new UTXO(txHash, index)); subclasses may answer without
+   // allocating a UTXO. Asks the filter first, if there is one.
+   public boolean contains(byte[] txHash, int index) {
+      if (!mightContain(txHash, index))
+         return false;
+      boolean found = contains(new UTXO(txHash, index));
+      if (!found)
+         notFound();
+      return found;
+   }
+   
+   // Returns the number of UTXOs in the pool
+   public int size() {
+      return H.size();
+   }
+   
    // Returns an ArrayList of all UTXOs in the pool
    public ArrayList<UTXO> getAllUTXO() {
       Set<UTXO> setUTXO = H.keySet();
@@ -55,4 +260,135 @@ public class UTXOPool {
       }
       return allUTXO;
    }
+   
+   // Calls <action> with every UTXO in the pool and its output, reading the
+   // pool in place instead of copying it. Changes to the pool during the call
+   // have the effect they have on spliterator().
+   public void forEach(final BiConsumer<UTXO, Transaction.Output> action) {
+      if (getClass() == UTXOPool.class) {
+         H.forEach(action);
+         return;
+      }
+      spliterator().forEachRemaining(new Consumer<Map.Entry<UTXO, Transaction.Output>>() {
+         public void accept(Map.Entry<UTXO, Transaction.Output> e) {
+            action.accept(e.getKey(), e.getValue());
+         }
+      });
+   }
+   
+   // Returns a Spliterator over the (UTXO, output) entries of the pool that
+   // reads the pool in place and splits for parallel streams; the entries
+   // cannot be used to change the pool. Unless an implementation says
+   // otherwise it is fail-fast: a change to the pool during a traversal makes
+   // the traversal throw ConcurrentModificationException, on a best-effort
+   // basis as in java.util. Subclasses that do not override it traverse
+   // getAllUTXO() instead, which copies the UTXOs.
+   public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+      if (getClass() == UTXOPool.class)
+         return new ImmutableEntries(H.entrySet().spliterator());
+      return getAllUTXO().stream().map(new Function<UTXO, Map.Entry<UTXO, Transaction.Output>>() {
+         public Map.Entry<UTXO, Transaction.Output> apply(UTXO ut) {
+            return new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(ut, getTxOutput(ut));
+         }
+      }).spliterator();
+   }
+   
+   // Returns a sequential stream over spliterator()
+   public Stream<Map.Entry<UTXO, Transaction.Output>> stream() {
+      return StreamSupport.stream(spliterator(), false);
+   }
+   
+   // Returns a parallel stream over spliterator()
+   public Stream<Map.Entry<UTXO, Transaction.Output>> parallelStream() {
+      return StreamSupport.stream(spliterator(), true);
+   }
+   
+   // Wraps the spliterator of a map's entries, handing out immutable copies of
+   // them
+   protected static class ImmutableEntries implements Spliterator<Map.Entry<UTXO, Transaction.Output>> {
+      private final Spliterator<Map.Entry<UTXO, Transaction.Output>> entries;
+      
+      protected ImmutableEntries(Spliterator<Map.Entry<UTXO, Transaction.Output>> entries) {
+         this.entries = entries;
+      }
+      
+      public boolean tryAdvance(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+         return entries.tryAdvance(copying(action));
+      }
+      
+      public void forEachRemaining(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+         entries.forEachRemaining(copying(action));
+      }
+      
+      public Spliterator<Map.Entry<UTXO, Transaction.Output>> trySplit() {
+         Spliterator<Map.Entry<UTXO, Transaction.Output>> prefix = entries.trySplit();
+         return prefix == null ? null : new ImmutableEntries(prefix);
+      }
+      
+      public long estimateSize() {
+         return entries.estimateSize();
+      }
+      
+      public int characteristics() {
+         return entries.characteristics();
+      }
+      
+      private static Consumer<Map.Entry<UTXO, Transaction.Output>> copying(
+            final Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+         return new Consumer<Map.Entry<UTXO, Transaction.Output>>() {
+            public void accept(Map.Entry<UTXO, Transaction.Output> e) {
+               action.accept(new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(e));
+            }
+         };
+      }
+   }
+   
+   // Traverses slots [slot, end) of a hash table kept in arrays, splitting
+   // the range in half; implementations say what a slot holds
+   protected abstract static class SlotSpliterator implements Spliterator<Map.Entry<UTXO, Transaction.Output>> {
+      private int slot;
+      private final int end;
+      
+      protected SlotSpliterator(int from, int to) {
+         slot = from;
+         end = to;
+      }
+      
+      // Returns the entry in <slot>, or null if the slot is empty; throws
+      // ConcurrentModificationException if the table changed since the
+      // traversal started
+      protected abstract Map.Entry<UTXO, Transaction.Output> entryAt(int slot);
+      
+      // Returns a spliterator over slots [from, to) of the same traversal
+      protected abstract SlotSpliterator split(int from, int to);
+      
+      public boolean tryAdvance(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+         while (slot < end) {
+            Map.Entry<UTXO, Transaction.Output> e = entryAt(slot++);
+            if (e != null) {
+               action.accept(e);
+               return true;
+            }
+         }
+         return false;
+      }
+      
+      public Spliterator<Map.Entry<UTXO, Transaction.Output>> trySplit() {
+         int mid = (slot + end) >>> 1;
+         if (mid <= slot)
+            return null;
+         SlotSpliterator prefix = split(slot, mid);
+         slot = mid;
+         return prefix;
+      }
+      
+      // The number of slots left, an upper bound on the entries
+      public long estimateSize() {
+         return end - slot;
+      }
+      
+      public int characteristics() {
+         return DISTINCT | NONNULL;
+      }
+   }
 }
@@ -0,0 +1,443 @@
+/*
+ * UndoJournal.java
+ *
+ * This class represents a per-epoch record of the changes an epoch made to a
+ * UTXO pool, the outputs it spent and the UTXOs it created, kept in an
+ * append-only file so that any suffix of epochs can be undone in O(changes)
+ * without ever copying the pool
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+public class UndoJournal implements Closeable {
+
+   private static final int MAGIC = 0x554e444f;   // "UNDO"
+   private static final int VERSION = 3;
+   // Version 2 records have no checksums, and version 1 records no
+   // SPENT_AMOUNT changes; both are rewritten on open
+   private static final int UNCHECKED_VERSION = 2;
+   private static final int LEGACY_VERSION = 1;
+   private static final int LEGACY_HEADER_BYTES = 8;
+
+   // The header is the magic, the version and the length the file had at
+   // the last checkpoint: the epochs before it were forced to disk, and
+   // only those after it are verified when the file is opened
+   private static final int H_DURABLE = 8;
+   private static final int HEADER_BYTES = 16;
+
+   // An epoch is stored as its length, a CRC32 of the rest of the record,
+   // its number, its number of changes and the changes in the order they
+   // were made. A change is SPENT,
+   // SPENT_AMOUNT or CREATED, the UTXO, and for a spend the raw value bits of
+   // the output, for SPENT_AMOUNT its amount in base units, and its address:
+   // a reference to an earlier address of the same epoch, or -1 followed by
+   // the exponent and modulus bytes. SPENT is only used for values that are
+   // no amount.
+   private static final byte SPENT = 1;
+   private static final byte CREATED = 2;
+   private static final byte SPENT_AMOUNT = 3;
+   private static final int RECORD_HEADER_BYTES = 4 + 4 + 8 + 4;
+   private static final int LEGACY_RECORD_HEADER_BYTES = 4 + 8 + 4;
+
+   // Outputs put back into a pool belong to no real transaction
+   private static final Transaction OWNER = new Transaction();
+
+   private final File file;
+   private final RandomAccessFile raf;
+   private final FileChannel channel;
+
+   // Where each epoch in the file starts, the records of the epochs after
+   // them that could not be appended yet, oldest first, and the number of
+   // the next epoch; the epochs are numbered up to it without gaps
+   private ArrayList<Long> offsets;
+   private ArrayList<ByteBuffer> unwritten = new ArrayList<ByteBuffer>();
+   private long nextEpoch;
+
+   // Changes of the epoch being recorded, and the ids of its addresses
+   private long openEpoch = -1;
+   private ByteArrayOutputStream bytes;
+   private DataOutputStream out;
+   private int changes;
+   private HashMap<BigInteger, Integer> addressIds;
+   private ArrayList<RSAKey> addresses;
+
+   // Opens the journal in <file>, creating it if it does not exist. Only the
+   // length and number of each epoch are read, except for the epochs appended
+   // after the last checkpoint, which are verified against their checksums:
+   // the first one torn by a crash, and every epoch after it, is dropped.
+   public UndoJournal(File file) throws IOException {
+      this.file = file;
+      upgrade(file);
+      raf = new RandomAccessFile(file, "rw");
+      channel = raf.getChannel();
+      offsets = new ArrayList<Long>();
+      if (channel.size() == 0) {
+         writeFully(header(HEADER_BYTES), 0);
+         return;
+      }
+
+      ByteBuffer header = read(0, HEADER_BYTES);
+      if (header == null || header.getInt() != MAGIC || header.getInt() != VERSION) {
+         close();
+         throw new IOException(file + " is not an undo journal");
+      }
+      long durable = header.getLong();
+      long pos = HEADER_BYTES;
+      long size = channel.size();
+      while (size - pos >= RECORD_HEADER_BYTES) {
+         ByteBuffer record = read(pos, RECORD_HEADER_BYTES);
+         int length = record.getInt();
+         record.getInt();
+         long epoch = record.getLong();
+         if (length < RECORD_HEADER_BYTES - 4 || size - pos - 4 < length)
+            break;
+         if (!offsets.isEmpty() && epoch != nextEpoch)
+            break;
+         if (pos >= durable && !isIntact(read(pos, 4 + length)))
+            break;
+         offsets.add(pos);
+         nextEpoch = epoch + 1;
+         pos += 4 + length;
+      }
+      if (pos < size)
+         truncate(pos);
+   }
+
+   // Returns the number of the last epoch recorded; the first epoch of a new
+   // journal is 0
+   public long lastEpoch() {
+      return nextEpoch - 1;
+   }
+
+   // Returns the number of the first epoch that can still be rolled back, or
+   // lastEpoch() + 1 if none can
+   public long firstEpoch() {
+      return nextEpoch - offsets.size() - unwritten.size();
+   }
+
+   // Starts recording the next epoch and returns its number
+   public long begin() {
+      if (openEpoch >= 0)
+         throw new IllegalStateException("epoch " + openEpoch + " is still being recorded");
+      openEpoch = nextEpoch;
+      bytes = new ByteArrayOutputStream();
+      out = new DataOutputStream(bytes);
+      changes = 0;
+      addressIds = new HashMap<BigInteger, Integer>();
+      addresses = new ArrayList<RSAKey>();
+      return openEpoch;
+   }
+
+   // Returns whether an epoch is being recorded
+   public boolean isRecording() {
+      return openEpoch >= 0;
+   }
+
+   // Records that <utxo>, which mapped to <txOut>, was removed from the pool
+   public void spent(UTXO utxo, Transaction.Output txOut) {
+      checkRecording();
+      try {
+         long units = 0;
+         boolean isAmount = true;
+         try {
+            units = txOut.getAmount();
+         } catch (ArithmeticException e) {
+            isAmount = false;
+         }
+         out.writeByte(isAmount ? SPENT_AMOUNT : SPENT);
+         writeUTXO(utxo);
+         out.writeLong(Double.doubleToRawLongBits(txOut.value));
+         if (isAmount)
+            out.writeLong(units);
+         RSAKey address = txOut.address;
+         Integer id = addressIds.get(address.getModulus());
+         if (id != null && addresses.get(id).getExponent().equals(address.getExponent())) {
+            out.writeInt(id);
+         } else {
+            addressIds.put(address.getModulus(), addresses.size());
+            addresses.add(address);
+            out.writeInt(-1);
+            writeBytes(address.getExponent().toByteArray());
+            writeBytes(address.getModulus().toByteArray());
+         }
+      } catch (IOException e) {
+         throw new IllegalStateException(e);
+      }
+      changes++;
+   }
+
+   // Records that <utxo> was added to the pool
+   public void created(UTXO utxo) {
+      checkRecording();
+      try {
+         out.writeByte(CREATED);
+         writeUTXO(utxo);
+      } catch (IOException e) {
+         throw new IllegalStateException(e);
+      }
+      changes++;
+   }
+
+   // Ends the epoch being recorded and appends it to the file, in a single
+   // write that is not forced to disk before the next checkpoint(). The
+   // epoch is ended even if the write fails: it is then kept in memory,
+   // where rollback still finds it, and appended before the next epoch or on
+   // checkpoint(); a partly written record is cut off.
+   public void end() throws IOException {
+      checkRecording();
+      byte[] body = bytes.toByteArray();
+      ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + body.length);
+      record.putInt(RECORD_HEADER_BYTES - 4 + body.length).putInt(0).putLong(openEpoch).putInt(changes).put(body);
+      record.putInt(4, checksum(record));
+      record.flip();
+      unwritten.add(record);
+      nextEpoch = openEpoch + 1;
+      openEpoch = -1;
+      bytes = null;
+      out = null;
+      addressIds = null;
+      addresses = null;
+      flush();
+   }
+
+   // Appends the epochs kept in memory to the file, oldest first
+   private void flush() throws IOException {
+      while (!unwritten.isEmpty()) {
+         ByteBuffer record = unwritten.get(0);
+         long pos = channel.size();
+         try {
+            writeFully(record.duplicate(), pos);
+         } catch (IOException e) {
+            try {
+               channel.truncate(pos);
+            } catch (IOException t) {
+               e.addSuppressed(t);
+            }
+            throw e;
+         }
+         offsets.add(pos);
+         unwritten.remove(0);
+      }
+   }
+
+   // Undoes epochs lastEpoch() down to <epoch> on <pool>, newest first, and
+   // drops them from the journal; <pool> must be the pool the epochs changed.
+   // Outputs are put back with the value they had, paid to the interned keys
+   // with the same exponent and modulus.
+   public void rollback(long epoch, UTXOPool pool) throws IOException {
+      if (openEpoch >= 0)
+         throw new IllegalStateException("epoch " + openEpoch + " is still being recorded");
+      if (epoch < firstEpoch() || epoch > lastEpoch() + 1)
+         throw new IllegalArgumentException("epoch " + epoch + " is not in the journal");
+      long first = firstEpoch();
+      for (long e = lastEpoch(); e >= epoch; e--) {
+         int i = (int) (e - first);
+         if (i >= offsets.size()) {
+            undo(unwritten.remove(i - offsets.size()).duplicate(), pool);
+            nextEpoch = e;
+            continue;
+         }
+         long start = offsets.get(i);
+         long end = i + 1 < offsets.size() ? offsets.get(i + 1) : channel.size();
+         undo(read(start, (int) (end - start)), pool);
+         offsets.remove(i);
+         truncate(start);
+         nextEpoch = e;
+      }
+   }
+
+   // Appends the epochs kept in memory and forces every epoch to disk, then
+   // records that they are durable
+   public void checkpoint() throws IOException {
+      flush();
+      channel.force(false);
+      setDurable(channel.size());
+   }
+
+   // Checkpoints and releases the file; an epoch still being recorded, or
+   // one that still cannot be appended, is lost
+   public void close() throws IOException {
+      try {
+         if (channel.isOpen())
+            checkpoint();
+      } finally {
+         raf.close();
+      }
+   }
+
+   // Reverts the changes of one epoch record, last change first
+   private void undo(ByteBuffer record, UTXOPool pool) throws IOException {
+      if (!isIntact(record))
+         throw new IOException(file + " holds a corrupt epoch");
+      record.getInt();
+      record.getInt();
+      record.getLong();
+      int n = record.getInt();
+      UTXO[] utxos = new UTXO[n];
+      Transaction.Output[] spent = new Transaction.Output[n];
+      ArrayList<RSAKey> ids = new ArrayList<RSAKey>();
+      for (int c = 0; c < n; c++) {
+         byte kind = record.get();
+         utxos[c] = new UTXO(readBytes(record), record.getInt());
+         if (kind == CREATED)
+            continue;
+         if (kind != SPENT && kind != SPENT_AMOUNT)
+            throw new IOException(file + " holds a corrupt epoch");
+         long valueBits = record.getLong();
+         long units = kind == SPENT_AMOUNT ? record.getLong() : 0;
+         int id = record.getInt();
+         RSAKey address;
+         if (id < 0) {
+            address = AddressTable.intern(new BigInteger(readBytes(record)), new BigInteger(readBytes(record)));
+            ids.add(address);
+         } else {
+            address = ids.get(id);
+         }
+         spent[c] = OWNER.new Output(Double.longBitsToDouble(valueBits), address);
+         // amounts above 2^53 units are not exactly their value
+         if (kind == SPENT_AMOUNT && Double.doubleToRawLongBits(Transaction.toValue(units)) == valueBits)
+            spent[c].setAmount(units);
+      }
+      for (int c = n - 1; c >= 0; c--) {
+         if (spent[c] != null)
+            pool.addUTXO(utxos[c], spent[c]);
+         else
+            pool.removeUTXO(utxos[c]);
+      }
+   }
+
+   // Cuts the file off at <pos>, first moving the durable length below it
+   // on disk, so that epochs appended later in its place are verified
+   private void truncate(long pos) throws IOException {
+      ByteBuffer header = read(0, HEADER_BYTES);
+      if (header.getLong(H_DURABLE) > pos)
+         setDurable(pos);
+      channel.truncate(pos);
+   }
+
+   private void setDurable(long length) throws IOException {
+      ByteBuffer durable = ByteBuffer.allocate(8);
+      durable.putLong(length).flip();
+      writeFully(durable, H_DURABLE);
+      channel.force(false);
+   }
+
+   // CRC32 of <record> after its length and checksum
+   private static int checksum(ByteBuffer record) {
+      ByteBuffer rest = record.duplicate();
+      rest.limit(rest.capacity());
+      rest.position(8);
+      CRC32 crc = new CRC32();
+      crc.update(rest);
+      return (int) crc.getValue();
+   }
+
+   private static boolean isIntact(ByteBuffer record) {
+      return record != null && record.capacity() >= RECORD_HEADER_BYTES
+         && record.getInt(4) == checksum(record);
+   }
+
+   private static ByteBuffer header(long durable) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      header.putInt(MAGIC).putInt(VERSION).putLong(durable).flip();
+      return header;
+   }
+
+   // Rewrites a journal of an older version in <file> with checksums, keeping
+   // the epochs up to the first one torn by a crash
+   private static void upgrade(File file) throws IOException {
+      if (file.length() < LEGACY_HEADER_BYTES)
+         return;
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      File tmp = new File(file.getPath() + ".tmp");
+      try {
+         if (in.readInt() != MAGIC)
+            return;
+         int version = in.readInt();
+         if (version != LEGACY_VERSION && version != UNCHECKED_VERSION)
+            return;
+         RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+         try {
+            out.setLength(0);
+            out.write(header(0).array());
+            long pos = LEGACY_HEADER_BYTES;
+            long size = in.length();
+            long next = -1;
+            while (size - pos >= LEGACY_RECORD_HEADER_BYTES) {
+               in.seek(pos);
+               int length = in.readInt();
+               if (length < LEGACY_RECORD_HEADER_BYTES - 4 || size - pos - 4 < length)
+                  break;
+               byte[] rest = new byte[length];
+               in.readFully(rest);
+               long epoch = ByteBuffer.wrap(rest).getLong();
+               if (next >= 0 && epoch != next)
+                  break;
+               ByteBuffer record = ByteBuffer.allocate(8 + length);
+               record.putInt(4 + length).putInt(0).put(rest);
+               record.putInt(4, checksum(record));
+               out.write(record.array());
+               next = epoch + 1;
+               pos += 4 + length;
+            }
+            out.seek(H_DURABLE);
+            out.writeLong(out.length());
+            out.getChannel().force(false);
+         } finally {
+            out.close();
+         }
+      } finally {
+         in.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   private void writeUTXO(UTXO utxo) throws IOException {
+      writeBytes(utxo.getTxHash());
+      out.writeInt(utxo.getIndex());
+   }
+
+   private void writeBytes(byte[] b) throws IOException {
+      out.writeInt(b.length);
+      out.write(b);
+   }
+
+   private static byte[] readBytes(ByteBuffer in) {
+      byte[] b = new byte[in.getInt()];
+      in.get(b);
+      return b;
+   }
+
+   private void checkRecording() {
+      if (openEpoch < 0)
+         throw new IllegalStateException("no epoch is being recorded");
+   }
+
+   private ByteBuffer read(long pos, int length) throws IOException {
+      ByteBuffer buf = ByteBuffer.allocate(length);
+      while (buf.hasRemaining()) {
+         if (channel.read(buf, pos + buf.position()) < 0)
+            return null;
+      }
+      buf.flip();
+      return buf;
+   }
+
+   private void writeFully(ByteBuffer buf, long pos) throws IOException {
+      while (buf.hasRemaining())
+         channel.write(buf, pos + buf.position());
+   }
+}
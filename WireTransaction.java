@@ -0,0 +1,318 @@
+/*
+ * WireTransaction.java
+ *
+ * This class represents a read-only view of a transaction record in a
+ * ByteBuffer, in TxWireFormat. Creating it reads only the length table; the
+ * hash is taken straight over the record's body the first time it is
+ * needed, the data to sign is cut from the body, and the inputs and outputs
+ * are only built when asked for, as new objects on every call, or one at a
+ * time and shared for callers that only read them.
+ */
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class WireTransaction extends Transaction {
+
+   private final ByteBuffer buf;
+   private final int table;     // offset of the length table
+   private final int numIn;
+   private final int numOut;
+   // at[i] is where input i starts in the body, at[numIn + j] where output j
+   // starts, and at[numIn + numOut] where the record ends
+   private final int[] at;
+
+   private volatile byte[] hash;
+   // The inputs and outputs built so far for input() and output(), created
+   // on first use
+   private volatile AtomicReferenceArray<Input> inputs;
+   private volatile AtomicReferenceArray<Output> outputs;
+
+   private WireTransaction(ByteBuffer buf, int table, int numIn, int numOut, int[] at) {
+      this.buf = buf;
+      this.table = table;
+      this.numIn = numIn;
+      this.numOut = numOut;
+      this.at = at;
+   }
+
+   // Parses the record at the position of <in> and advances past it
+   static WireTransaction parse(ByteBuffer in) {
+      int start = in.position();
+      if (in.limit() - start < TxWireFormat.HEADER_BYTES)
+         throw malformed();
+      int length = in.getInt(start);
+      int numIn = in.getInt(start + 4);
+      int numOut = in.getInt(start + 8);
+      long end = (long) start + 4 + length;
+      int table = start + TxWireFormat.HEADER_BYTES;
+      long body = table + ((long) numIn + numOut) * TxWireFormat.ENTRY_BYTES;
+      if (length < 0 || numIn < 0 || numOut < 0 || end > in.limit() || body > end)
+         throw malformed();
+
+      int[] at = new int[numIn + numOut + 1];
+      long pos = body;
+      for (int i = 0; i < numIn; i++) {
+         at[i] = (int) pos;
+         int hashLength = in.getInt(table + i * TxWireFormat.ENTRY_BYTES);
+         int sigLength = in.getInt(table + i * TxWireFormat.ENTRY_BYTES + 4);
+         if (hashLength < -1 || sigLength < -1)
+            throw malformed();
+         pos += Math.max(hashLength, 0) + 4 + Math.max(sigLength, 0);
+      }
+      for (int j = 0; j < numOut; j++) {
+         at[numIn + j] = (int) pos;
+         int entry = table + (numIn + j) * TxWireFormat.ENTRY_BYTES;
+         int expLength = in.getInt(entry);
+         int modLength = in.getInt(entry + 4);
+         if (expLength <= 0 || modLength <= 0)
+            throw malformed();
+         pos += 8 + expLength + modLength;
+      }
+      if (pos != end)
+         throw malformed();
+      at[numIn + numOut] = (int) end;
+
+      in.position((int) end);
+      return new WireTransaction(in.duplicate(), table, numIn, numOut, at);
+   }
+
+   private static IllegalArgumentException malformed() {
+      return new IllegalArgumentException("malformed transaction record");
+   }
+
+   public int numInputs() {
+      return numIn;
+   }
+
+   public int numOutputs() {
+      return numOut;
+   }
+
+   // Returns a copy of the SHA-256 of the body
+   public byte[] getHash() {
+      return identity().clone();
+   }
+
+   byte[] identity() {
+      byte[] h = hash;
+      if (h == null) {
+         ByteBuffer body = buf.duplicate();
+         body.limit(at[numIn + numOut]);
+         body.position(at[0]);
+         try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(body);
+            h = md.digest();
+         } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+         }
+         hash = h;
+      }
+      return h;
+   }
+
+   public byte[] getRawTx() {
+      return copy(at[0], at[numIn + numOut] - at[0]);
+   }
+
+   public byte[] getRawDataToSign(int index) {
+      if (index > numIn)
+         return null;
+      if (index == numIn)
+         throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + numIn);
+      int prefix = Math.max(hashLength(index), 0) + 4;
+      int outputs = at[numIn + numOut] - at[numIn];
+      byte[] data = new byte[prefix + outputs];
+      ByteBuffer src = buf.duplicate();
+      src.position(at[index]);
+      src.get(data, 0, prefix);
+      src.position(at[numIn]);
+      src.get(data, prefix, outputs);
+      return data;
+   }
+
+   public byte[][] getAllRawDataToSign() {
+      byte[][] data = new byte[numIn][];
+      for (int i = 0; i < numIn; i++)
+         data[i] = getRawDataToSign(i);
+      return data;
+   }
+
+   // Builds new inputs from the record on every call, so that changing them
+   // cannot change the transaction
+   public ArrayList<Input> getInputs() {
+      ArrayList<Input> list = new ArrayList<Input>(numIn);
+      for (int i = 0; i < numIn; i++)
+         list.add(readInput(i));
+      return list;
+   }
+
+   // Builds new outputs from the record on every call
+   public ArrayList<Output> getOutputs() {
+      ArrayList<Output> list = new ArrayList<Output>(numOut);
+      for (int j = 0; j < numOut; j++)
+         list.add(readOutput(j));
+      return list;
+   }
+
+   public Input getInput(int index) {
+      return index < numIn ? readInput(index) : null;
+   }
+
+   public Output getOutput(int index) {
+      return index < numOut ? readOutput(index) : null;
+   }
+
+   // For callers that only read: each input is built the first time it is
+   // asked for, and shared from then on; threads racing to build the same
+   // input all get the first one stored
+   Input input(int index) {
+      if (index >= numIn)
+         return null;
+      AtomicReferenceArray<Input> built = inputs;
+      if (built == null) {
+         synchronized (this) {
+            built = inputs;
+            if (built == null) {
+               built = new AtomicReferenceArray<Input>(numIn);
+               inputs = built;
+            }
+         }
+      }
+      Input in = built.get(index);
+      if (in == null && !built.compareAndSet(index, null, in = readInput(index)))
+         in = built.get(index);
+      return in;
+   }
+
+   Output output(int index) {
+      if (index >= numOut)
+         return null;
+      AtomicReferenceArray<Output> built = outputs;
+      if (built == null) {
+         synchronized (this) {
+            built = outputs;
+            if (built == null) {
+               built = new AtomicReferenceArray<Output>(numOut);
+               outputs = built;
+            }
+         }
+      }
+      Output out = built.get(index);
+      if (out == null && !built.compareAndSet(index, null, out = readOutput(index)))
+         out = built.get(index);
+      return out;
+   }
+
+   // Read from the record, without building the output or its address
+   double value(int index) {
+      return getValue(index);
+   }
+
+   long amount(int index) {
+      return Transaction.toAmount(getValue(index));
+   }
+
+   private Input readInput(int i) {
+      int hashLength = hashLength(i);
+      int sigLength = buf.getInt(table + i * TxWireFormat.ENTRY_BYTES + 4);
+      int pos = at[i] + Math.max(hashLength, 0);
+      Input in = new Input(null, buf.getInt(pos));
+      if (hashLength >= 0)
+         in.prevTxHash = copy(at[i], hashLength);
+      if (sigLength >= 0)
+         in.signature = copy(pos + 4, sigLength);
+      return in;
+   }
+
+   private Output readOutput(int j) {
+      int entry = table + (numIn + j) * TxWireFormat.ENTRY_BYTES;
+      int expLength = buf.getInt(entry);
+      int modLength = buf.getInt(entry + 4);
+      int pos = at[numIn + j];
+      double value = Double.longBitsToDouble(buf.getLong(pos));
+      BigInteger exponent = new BigInteger(copy(pos + 8, expLength));
+      BigInteger modulus = new BigInteger(copy(pos + 8 + expLength, modLength));
+      return new Output(value, AddressTable.intern(exponent, modulus));
+   }
+
+   // The output index of input <index>, read without building the input
+   public int getOutputIndex(int index) {
+      return buf.getInt(at[index] + Math.max(hashLength(index), 0));
+   }
+
+   // The value bits of output <index>, read without building the output
+   public double getValue(int index) {
+      return Double.longBitsToDouble(buf.getLong(at[numIn + index]));
+   }
+
+   private int hashLength(int input) {
+      return buf.getInt(table + input * TxWireFormat.ENTRY_BYTES);
+   }
+
+   private byte[] copy(int from, int length) {
+      byte[] out = new byte[length];
+      ByteBuffer src = buf.duplicate();
+      src.position(from);
+      src.get(out);
+      return out;
+   }
+
+   // Nothing to compute, and empty so that views are not registered with
+   // the finalizer
+   public void finalize() {
+   }
+
+   public void addInput(byte[] prevTxHash, int outputIndex) {
+      throw readOnly();
+   }
+
+   public void addOutput(double value, RSAKey address) {
+      throw readOnly();
+   }
+
+   public void addOutputAmount(long units, RSAKey address) {
+      throw readOnly();
+   }
+
+   public void removeInput(int index) {
+      throw readOnly();
+   }
+
+   public void removeInput(UTXO ut) {
+      throw readOnly();
+   }
+
+   public void addSignature(byte[] signature, int index) {
+      throw readOnly();
+   }
+
+   public void setHash(byte[] h) {
+      throw readOnly();
+   }
+
+   private static UnsupportedOperationException readOnly() {
+      return new UnsupportedOperationException("a WireTransaction cannot be changed");
+   }
+
+   // Equal to any transaction of a kind that cannot change, such as an
+   // ImmutableTransaction, with the same hash
+   public boolean equals(Object other) {
+      if (this == other)
+         return true;
+      if (!(other instanceof Transaction))
+         return false;
+      byte[] h = ((Transaction) other).identity();
+      return h != null && Arrays.equals(identity(), h);
+   }
+
+   public int hashCode() {
+      return Arrays.hashCode(identity());
+   }
+}
@@ -0,0 +1,104 @@
+/* 
+ * EpochWorkload.java
+ * 
+ * Synthetic epochs for bench.ValidationBenchmark
+ */
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class EpochWorkload implements bench.EpochFixture {
+   
+   private UTXOPool pool;
+   private Transaction[] epoch;
+   
+   // transactions whose inputs are all in the pool before the epoch
+   private Transaction[] firstLayer;
+   private int next;
+   private TxHandler validator;
+   
+   public void setUp(String shape, int epochSize, int poolSize, String backend) {
+      Random random = new Random(42);
+      RSAKeyPair owner = Workloads.keyPair(1);
+      RSAKey pub = owner.getPublicKey();
+      RSAKey priv = owner.getPrivateKey();
+      
+      int width = shape.equals("conflict") ? Math.max(2, epochSize / 8) : 1;
+      Transaction genesis = new Transaction();
+      for (int i = 0; i < width; i++)
+         genesis.addOutput(1000, pub);
+      genesis.finalize();
+      
+      pool = Workloads.newPool(backend, Math.max(poolSize, width));
+      for (int i = 0; i < width; i++)
+         pool.addUTXO(new UTXO(genesis.getHash(), i), genesis.getOutput(i));
+      Workloads.pad(pool, Math.max(0, poolSize - width), genesis.getOutput(0), random);
+      
+      ArrayList<Transaction> txs = new ArrayList<Transaction>();
+      ArrayList<Transaction> first = new ArrayList<Transaction>();
+      if (shape.equals("chain")) {
+         Transaction prev = genesis;
+         for (int i = 0; i < epochSize; i++) {
+            Transaction tx = new Transaction();
+            tx.addInput(prev.getHash(), 0);
+            tx.addOutput(1000, pub);
+            prev = Workloads.sign(tx, priv);
+            txs.add(0, tx);
+         }
+         first.add(txs.get(txs.size() - 1));
+      } else if (shape.equals("fanout")) {
+         Transaction root = new Transaction();
+         root.addInput(genesis.getHash(), 0);
+         for (int i = 1; i < epochSize; i++)
+            root.addOutput(1000.0 / epochSize, pub);
+         Workloads.sign(root, priv);
+         txs.add(root);
+         first.add(root);
+         for (int i = 1; i < epochSize; i++) {
+            Transaction tx = new Transaction();
+            tx.addInput(root.getHash(), i - 1);
+            tx.addOutput(1000.0 / epochSize, pub);
+            txs.add(Workloads.sign(tx, priv));
+         }
+      } else if (shape.equals("conflict")) {
+         for (int i = 0; i < epochSize; i++) {
+            int a = random.nextInt(width);
+            int b = (a + 1 + random.nextInt(width - 1)) % width;
+            Transaction tx = new Transaction();
+            tx.addInput(genesis.getHash(), a);
+            tx.addInput(genesis.getHash(), b);
+            tx.addOutput(random.nextInt(2000), pub);
+            txs.add(Workloads.sign(tx, priv));
+         }
+         first.addAll(txs);
+      } else {
+         throw new IllegalArgumentException("unknown shape " + shape);
+      }
+      
+      epoch = txs.toArray(new Transaction[txs.size()]);
+      if (!shape.equals("chain"))
+         Workloads.shuffle(epoch, random);
+      firstLayer = first.toArray(new Transaction[first.size()]);
+      
+      // isValidTx is measured without the signature cache, so every call
+      // pays for its RSA checks
+      validator = new TxHandler(new UTXOPool());
+      validator.pool = pool;
+      validator.setSignatureCache(null);
+   }
+   
+   public Object handleTxs() {
+      TxHandler handler = new TxHandler(new UTXOPool());
+      SnapshotUTXOPool snapshot = pool.snapshot();
+      handler.pool = snapshot;
+      Transaction[] accepted = handler.handleTxs(epoch);
+      snapshot.discard();
+      return accepted;
+   }
+   
+   public boolean isValidTx() {
+      Transaction tx = firstLayer[next];
+      next = (next + 1) % firstLayer.length;
+      return validator.isValidTx(tx);
+   }
+}
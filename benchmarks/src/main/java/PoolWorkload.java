@@ -0,0 +1,52 @@
+/* 
+ * PoolWorkload.java
+ * 
+ * Pool lookups for bench.PoolBenchmark
+ */
+
+import java.util.Random;
+
+public class PoolWorkload implements bench.PoolFixture {
+   
+   private static final int PROBES = 1024;
+   
+   private UTXOPool pool;
+   private byte[][] hitHashes;
+   private int[] hitIndexes;
+   private byte[][] missHashes;
+   private int next;
+   
+   public void setUp(int poolSize, String backend) {
+      Random random = new Random(42);
+      Transaction owner = new Transaction();
+      owner.addOutput(1, Workloads.keyPair(1).getPublicKey());
+      pool = Workloads.newPool(backend, poolSize);
+      
+      // the probed UTXOs are spread over the pool, between the padding
+      hitHashes = new byte[PROBES][32];
+      hitIndexes = new int[PROBES];
+      int chunk = Math.max(0, poolSize / PROBES - 1);
+      for (int i = 0; i < PROBES; i++) {
+         random.nextBytes(hitHashes[i]);
+         hitIndexes[i] = random.nextInt(4);
+         pool.addUTXO(new UTXO(hitHashes[i], hitIndexes[i]), owner.getOutput(0));
+         Workloads.pad(pool, chunk, owner.getOutput(0), random);
+      }
+      
+      missHashes = new byte[PROBES][32];
+      for (int i = 0; i < PROBES; i++)
+         random.nextBytes(missHashes[i]);
+   }
+   
+   public Object lookupHit() {
+      int i = next;
+      next = (i + 1) & (PROBES - 1);
+      return pool.getTxOutput(hitHashes[i], hitIndexes[i]);
+   }
+   
+   public Object lookupMiss() {
+      int i = next;
+      next = (i + 1) & (PROBES - 1);
+      return pool.getTxOutput(missHashes[i], 0);
+   }
+}
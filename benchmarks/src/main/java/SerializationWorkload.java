@@ -0,0 +1,97 @@
+/* 
+ * SerializationWorkload.java
+ * 
+ * Transaction encodings for bench.SerializationBenchmark, next to a copy of
+ * the ArrayList<Byte> serializer Transaction used to have
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class SerializationWorkload implements bench.SerializationFixture {
+   
+   private Transaction tx;
+   
+   public void setUp(int inputs, int outputs) {
+      Random random = new Random(42);
+      RSAKeyPair owner = Workloads.keyPair(1);
+      tx = new Transaction();
+      byte[] hash = new byte[32];
+      for (int i = 0; i < inputs; i++) {
+         random.nextBytes(hash);
+         tx.addInput(hash, i);
+      }
+      for (int i = 0; i < outputs; i++)
+         tx.addOutput(random.nextInt(100), Workloads.keyPair(2 + i % 4).getPublicKey());
+      Workloads.sign(tx, owner.getPrivateKey());
+   }
+   
+   public byte[] getRawDataToSign() {
+      return tx.getRawDataToSign(0);
+   }
+   
+   public byte[] getRawTx() {
+      return tx.getRawTx();
+   }
+   
+   public byte[][] getAllRawDataToSign() {
+      return tx.getAllRawDataToSign();
+   }
+   
+   public byte[] legacyGetRawDataToSign() {
+      ArrayList<Byte> sigData = new ArrayList<Byte>();
+      Transaction.Input in = tx.getInput(0);
+      byte[] prevTxHash = in.prevTxHash;
+      ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
+      b.putInt(in.outputIndex);
+      byte[] outputIndex = b.array();
+      for (int i = 0; i < prevTxHash.length; i++)
+         sigData.add(prevTxHash[i]);
+      for (int i = 0; i < outputIndex.length; i++)
+         sigData.add(outputIndex[i]);
+      addOutputs(sigData);
+      return unbox(sigData);
+   }
+   
+   public byte[] legacyGetRawTx() {
+      ArrayList<Byte> rawTx = new ArrayList<Byte>();
+      for (Transaction.Input in : tx.getInputs()) {
+         ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
+         b.putInt(in.outputIndex);
+         byte[] outputIndex = b.array();
+         for (int i = 0; i < in.prevTxHash.length; i++)
+            rawTx.add(in.prevTxHash[i]);
+         for (int i = 0; i < outputIndex.length; i++)
+            rawTx.add(outputIndex[i]);
+         for (int i = 0; i < in.signature.length; i++)
+            rawTx.add(in.signature[i]);
+      }
+      addOutputs(rawTx);
+      return unbox(rawTx);
+   }
+   
+   private void addOutputs(ArrayList<Byte> data) {
+      for (Transaction.Output op : tx.getOutputs()) {
+         ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
+         bo.putDouble(op.value);
+         byte[] value = bo.array();
+         byte[] addressExponent = op.address.getExponent().toByteArray();
+         byte[] addressModulus = op.address.getModulus().toByteArray();
+         for (int i = 0; i < value.length; i++)
+            data.add(value[i]);
+         for (int i = 0; i < addressExponent.length; i++)
+            data.add(addressExponent[i]);
+         for (int i = 0; i < addressModulus.length; i++)
+            data.add(addressModulus[i]);
+      }
+   }
+   
+   private static byte[] unbox(ArrayList<Byte> data) {
+      byte[] bytes = new byte[data.size()];
+      int i = 0;
+      for (Byte b : data)
+         bytes[i++] = b;
+      return bytes;
+   }
+}
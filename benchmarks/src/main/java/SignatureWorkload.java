@@ -0,0 +1,55 @@
+/* 
+ * SignatureWorkload.java
+ * 
+ * Signature checks for bench.SignatureBenchmark: RSAKey.verifySignature next
+ * to SignatureVerifier, alone and batched
+ */
+
+public class SignatureWorkload implements bench.SignatureFixture {
+   
+   private RSAKey[] keys;
+   private byte[][] messages;
+   private byte[][] signatures;
+   private int next;
+   
+   public void setUp(int keyCount, int checks) {
+      RSAKeyPair[] pairs = new RSAKeyPair[keyCount];
+      for (int i = 0; i < keyCount; i++)
+         pairs[i] = Workloads.keyPair(1 + i);
+      keys = new RSAKey[checks];
+      messages = new byte[checks][];
+      signatures = new byte[checks][];
+      for (int i = 0; i < checks; i++) {
+         RSAKeyPair pair = pairs[i % keyCount];
+         byte[] message = new byte[150];
+         message[0] = (byte) i;
+         message[1] = (byte) (i >>> 8);
+         keys[i] = pair.getPublicKey();
+         messages[i] = message;
+         signatures[i] = pair.getPrivateKey().sign(message);
+      }
+   }
+   
+   public boolean rsaKey() {
+      int i = advance();
+      return keys[i].verifySignature(messages[i], signatures[i]);
+   }
+   
+   public boolean signatureVerifier() {
+      int i = advance();
+      return SignatureVerifier.verify(keys[i], messages[i], signatures[i]);
+   }
+   
+   public boolean[] batch() throws InterruptedException {
+      SignatureVerifier.Batch batch = new SignatureVerifier.Batch();
+      for (int i = 0; i < keys.length; i++)
+         batch.add(keys[i], messages[i], signatures[i]);
+      return batch.verify();
+   }
+   
+   private int advance() {
+      int i = next;
+      next = i + 1 == keys.length ? 0 : i + 1;
+      return i;
+   }
+}
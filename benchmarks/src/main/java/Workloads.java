@@ -0,0 +1,58 @@
+/* 
+ * Workloads.java
+ * 
+ * Helpers shared by the benchmark workloads: deterministic keys, signed
+ * transactions and pools padded with unrelated UTXOs
+ */
+
+import java.util.Random;
+
+final class Workloads {
+   
+   // Large enough for RSAKey to sign 32-byte digests, as in production use
+   static final int KEY_BITS = 1024;
+   
+   private Workloads() {
+   }
+   
+   static RSAKeyPair keyPair(int seed) {
+      byte[] key = new byte[32];
+      key[0] = (byte) seed;
+      key[1] = (byte) (seed >>> 8);
+      return new RSAKeyPair(new PRGen(key), KEY_BITS);
+   }
+   
+   static UTXOPool newPool(String backend, int expected) {
+      if (backend.equals("hash"))
+         return new UTXOPool();
+      if (backend.equals("compact"))
+         return new CompactUTXOPool(expected);
+      throw new IllegalArgumentException("unknown backend " + backend);
+   }
+   
+   // Adds <count> UTXOs with random 32-byte hashes, all sharing one output
+   static void pad(UTXOPool pool, int count, Transaction.Output filler, Random random) {
+      byte[] hash = new byte[32];
+      for (int i = 0; i < count; i++) {
+         random.nextBytes(hash);
+         pool.addUTXO(new UTXO(hash, i & 3), filler);
+      }
+   }
+   
+   // Signs every input of <tx> with <key> and computes its hash
+   static Transaction sign(Transaction tx, RSAKey key) {
+      for (int i = 0; i < tx.numInputs(); i++)
+         tx.addSignature(key.sign(tx.getRawDataToSign(i)), i);
+      tx.finalize();
+      return tx;
+   }
+   
+   static void shuffle(Object[] a, Random random) {
+      for (int i = a.length - 1; i > 0; i--) {
+         int j = random.nextInt(i + 1);
+         Object t = a[i];
+         a[i] = a[j];
+         a[j] = t;
+      }
+   }
+}
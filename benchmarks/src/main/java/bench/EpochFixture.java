@@ -0,0 +1,19 @@
+package bench;
+
+// An epoch of signed transactions over a pre-filled UTXO pool
+public interface EpochFixture {
+
+    /* <shape> is "chain" (each transaction spends the previous one, proposed
+     * in reverse), "fanout" (one transaction with many outputs, each spent by
+     * its own child) or "conflict" (every transaction spends two of a few
+     * shared outputs). <backend> is "hash" for UTXOPool or "compact" for
+     * CompactUTXOPool.
+     */
+    void setUp(String shape, int epochSize, int poolSize, String backend);
+
+    // Runs handleTxs over the epoch on a fresh handler and snapshot of the pool
+    Object handleTxs();
+
+    // Validates the next transaction whose inputs are all in the pool
+    boolean isValidTx();
+}
@@ -0,0 +1,21 @@
+package bench;
+
+/* JMH refuses benchmark classes in the default package, and classes in a named
+ * package cannot refer to the default-package classes under test. Workloads
+ * therefore live in the default package, behind the interfaces of this
+ * package, and are loaded reflectively once per trial; the calls made while
+ * measuring are plain interface calls.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot load workload " + className, e);
+        }
+    }
+}
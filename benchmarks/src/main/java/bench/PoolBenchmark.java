@@ -0,0 +1,51 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* UTXOPool lookups by raw hash and index. See ValidationBenchmark for running
+ * with pools of 10^8 UTXOs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolBenchmark {
+
+    @Param({"1000", "100000", "10000000"})
+    public int poolSize;
+
+    @Param({"hash", "compact"})
+    public String backend;
+
+    private PoolFixture fixture;
+
+    @Setup
+    public void setUp() {
+        fixture = Fixtures.load("PoolWorkload", PoolFixture.class);
+        fixture.setUp(poolSize, backend);
+    }
+
+    @Benchmark
+    public Object lookupHit() {
+        return fixture.lookupHit();
+    }
+
+    @Benchmark
+    public Object lookupMiss() {
+        return fixture.lookupMiss();
+    }
+}
@@ -0,0 +1,14 @@
+package bench;
+
+// A pre-filled UTXO pool and keys to probe it with
+public interface PoolFixture {
+
+    // <backend> is "hash" for UTXOPool or "compact" for CompactUTXOPool
+    void setUp(int poolSize, String backend);
+
+    // Looks up the next UTXO that is in the pool
+    Object lookupHit();
+
+    // Looks up the next UTXO that is not in the pool
+    Object lookupMiss();
+}
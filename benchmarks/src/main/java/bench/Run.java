@@ -0,0 +1,30 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/* Entry point of benchmarks.jar: the usual JMH command line, with the GC
+ * profiler always on so that every result comes with its allocation rate.
+ */
+public final class Run {
+
+    private Run() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> list = Arrays.asList(args);
+        if (list.contains("-h") || list.contains("-l") || list.contains("-lp")
+                || list.contains("-lprof") || list.contains("-lrf") || list.contains("-prof")) {
+            Main.main(args);
+            return;
+        }
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build()).run();
+    }
+}
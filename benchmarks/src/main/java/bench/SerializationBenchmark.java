@@ -0,0 +1,66 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Transaction.getRawDataToSign and getRawTx against the ArrayList<Byte>
+ * serializer they replaced; compare gc.alloc.rate.norm between the two.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"1", "8"})
+    public int inputs;
+
+    @Param({"2", "16"})
+    public int outputs;
+
+    private SerializationFixture fixture;
+
+    @Setup
+    public void setUp() {
+        fixture = Fixtures.load("SerializationWorkload", SerializationFixture.class);
+        fixture.setUp(inputs, outputs);
+    }
+
+    @Benchmark
+    public byte[] getRawDataToSign() {
+        return fixture.getRawDataToSign();
+    }
+
+    @Benchmark
+    public byte[] getRawTx() {
+        return fixture.getRawTx();
+    }
+
+    @Benchmark
+    public byte[][] getAllRawDataToSign() {
+        return fixture.getAllRawDataToSign();
+    }
+
+    @Benchmark
+    public byte[] legacyGetRawDataToSign() {
+        return fixture.legacyGetRawDataToSign();
+    }
+
+    @Benchmark
+    public byte[] legacyGetRawTx() {
+        return fixture.legacyGetRawTx();
+    }
+}
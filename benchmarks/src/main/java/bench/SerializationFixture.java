@@ -0,0 +1,17 @@
+package bench;
+
+// A signed transaction and the old boxing serializer, as a baseline
+public interface SerializationFixture {
+
+    void setUp(int inputs, int outputs);
+
+    byte[] getRawDataToSign();
+
+    byte[] getRawTx();
+
+    byte[][] getAllRawDataToSign();
+
+    byte[] legacyGetRawDataToSign();
+
+    byte[] legacyGetRawTx();
+}
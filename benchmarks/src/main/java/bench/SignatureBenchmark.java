@@ -0,0 +1,57 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* One signature check through RSAKey and through SignatureVerifier, on one
+ * thread, and a whole batch of <checks> through SignatureVerifier.Batch on
+ * the common fork-join pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+
+    @Param({"4"})
+    public int keys;
+
+    @Param({"256"})
+    public int checks;
+
+    private SignatureFixture fixture;
+
+    @Setup
+    public void setUp() {
+        fixture = Fixtures.load("SignatureWorkload", SignatureFixture.class);
+        fixture.setUp(keys, checks);
+    }
+
+    @Benchmark
+    public boolean rsaKey() {
+        return fixture.rsaKey();
+    }
+
+    @Benchmark
+    public boolean signatureVerifier() {
+        return fixture.signatureVerifier();
+    }
+
+    @Benchmark
+    public boolean[] batch() throws InterruptedException {
+        return fixture.batch();
+    }
+}
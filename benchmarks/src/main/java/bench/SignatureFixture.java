@@ -0,0 +1,13 @@
+package bench;
+
+// Signed messages under a handful of keys, checked one at a time or as a batch
+public interface SignatureFixture {
+
+    void setUp(int keys, int checks);
+
+    boolean rsaKey();
+
+    boolean signatureVerifier();
+
+    boolean[] batch() throws InterruptedException;
+}
@@ -0,0 +1,58 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* TxHandler.handleTxs and isValidTx over synthetic epochs. Pools of 10^8
+ * UTXOs need a large heap and the compact backend, for example
+ * -p poolSize=100000000 -p backend=compact -jvmArgs -Xmx24g.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmark {
+
+    @Param({"chain", "fanout", "conflict"})
+    public String shape;
+
+    @Param({"100", "1000"})
+    public int epochSize;
+
+    @Param({"1000", "100000", "10000000"})
+    public int poolSize;
+
+    @Param({"hash", "compact"})
+    public String backend;
+
+    private EpochFixture fixture;
+
+    @Setup
+    public void setUp() {
+        fixture = Fixtures.load("EpochWorkload", EpochFixture.class);
+        fixture.setUp(shape, epochSize, poolSize, backend);
+    }
+
+    @Benchmark
+    public Object handleTxs() {
+        return fixture.handleTxs();
+    }
+
+    @Benchmark
+    public boolean isValidTx() {
+        return fixture.isValidTx();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * ConcurrentUTXOPoolTest.java
+ *
+ * Races many threads spending overlapping UTXOs, through TxHandler.acceptTx
+ * and through ConcurrentUTXOPool.spendAll directly, and checks that every
+ * UTXO is spent at most once and that no UTXO is lost or made up
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+public class ConcurrentUTXOPoolTest {
+
+   private static final int THREADS = 8;
+   private static final int UTXOS = 200;
+
+   @Test
+   public void racingAcceptTxSpendsEveryUtxoOnce() throws Exception {
+      RSAKeyPair owner = keyPair(1);
+      Transaction genesis = new Transaction();
+      for (int i = 0; i < UTXOS; i++)
+         genesis.addOutput(10, owner.getPublicKey());
+      genesis.finalize();
+      UTXOPool start = new UTXOPool();
+      for (int i = 0; i < UTXOS; i++)
+         start.addUTXO(new UTXO(genesis.getHash(), i), genesis.getOutput(i));
+      final TxHandler handler = new TxHandler(new ConcurrentUTXOPool(start));
+
+      // two single spends of every UTXO, and a spend of every pair of
+      // neighbours, so that most transactions conflict with several others
+      final List<Transaction> txs = new ArrayList<Transaction>();
+      for (int i = 0; i < UTXOS; i++) {
+         for (int copy = 0; copy < 2; copy++)
+            txs.add(spend(owner, genesis, 10 - copy, i));
+         txs.add(spend(owner, genesis, 20, i, (i + 1) % UTXOS));
+      }
+      Collections.shuffle(txs, new Random(8));
+
+      final boolean[] accepted = new boolean[txs.size()];
+      race(new Worker() {
+         public void run(int thread) {
+            for (int t = thread; t < txs.size(); t += THREADS)
+               accepted[t] = handler.acceptTx(txs.get(t));
+         }
+      });
+
+      int[] winners = new int[UTXOS];
+      int acceptedCount = 0;
+      for (int t = 0; t < txs.size(); t++) {
+         if (!accepted[t])
+            continue;
+         acceptedCount++;
+         for (Transaction.Input in : txs.get(t).getInputs())
+            winners[in.outputIndex]++;
+         assertTrue(handler.pool.contains(new UTXO(txs.get(t).getHash(), 0)));
+      }
+      // every UTXO has a single spend that only loses if it was spent, so
+      // each ends up spent by exactly one accepted transaction
+      for (int i = 0; i < UTXOS; i++) {
+         assertEquals("winners of UTXO " + i, 1, winners[i]);
+         assertFalse(handler.pool.contains(new UTXO(genesis.getHash(), i)));
+      }
+      assertEquals(acceptedCount, handler.pool.size());
+   }
+
+   @Test
+   public void racingSpendAllConservesThePool() throws Exception {
+      RSAKeyPair owner = keyPair(2);
+      final Transaction.Output output = new Transaction().new Output(1, owner.getPublicKey());
+      final byte[] base = new byte[32];
+      final ConcurrentUTXOPool pool = new ConcurrentUTXOPool();
+      for (int i = 0; i < UTXOS; i++)
+         pool.addUTXO(new UTXO(base, i), output);
+
+      // each call spends up to three random base UTXOs and creates one UTXO
+      // of its own
+      final AtomicIntegerArray spentBy = new AtomicIntegerArray(UTXOS);
+      final int[] created = new int[THREADS];
+      race(new Worker() {
+         public void run(int thread) {
+            Random random = new Random(thread);
+            for (int call = 0; call < 2000; call++) {
+               int[] picks = new int[1 + random.nextInt(3)];
+               for (int p = 0; p < picks.length; p++)
+                  picks[p] = random.nextInt(UTXOS);
+               Arrays.sort(picks);
+               ArrayList<UTXO> spent = new ArrayList<UTXO>();
+               for (int p = 0; p < picks.length; p++) {
+                  if (p == 0 || picks[p] != picks[p - 1])
+                     spent.add(new UTXO(base, picks[p]));
+               }
+               byte[] own = new byte[32];
+               own[0] = (byte) (thread + 1);
+               Map<UTXO, Transaction.Output> made = new HashMap<UTXO, Transaction.Output>();
+               made.put(new UTXO(own, call), output);
+               if (pool.spendAll(spent, made)) {
+                  created[thread]++;
+                  for (UTXO ut : spent)
+                     spentBy.incrementAndGet(ut.getIndex());
+               }
+            }
+         }
+      });
+
+      int spentCount = 0;
+      for (int i = 0; i < UTXOS; i++) {
+         assertTrue("UTXO " + i + " spent " + spentBy.get(i) + " times", spentBy.get(i) <= 1);
+         assertEquals(spentBy.get(i) == 0, pool.contains(new UTXO(base, i)));
+         spentCount += spentBy.get(i);
+      }
+      int createdCount = 0;
+      for (int c : created)
+         createdCount += c;
+      assertEquals(UTXOS - spentCount + createdCount, pool.size());
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void spendAllRejectsADuplicateBeforeChangingAnything() {
+      RSAKeyPair owner = keyPair(3);
+      Transaction.Output output = new Transaction().new Output(1, owner.getPublicKey());
+      ConcurrentUTXOPool pool = new ConcurrentUTXOPool();
+      UTXO a = new UTXO(new byte[32], 0);
+      UTXO b = new UTXO(new byte[32], 1);
+      pool.addUTXO(a, output);
+      pool.addUTXO(b, output);
+      pool.enableCommitment();
+      byte[] before = pool.getCommitment();
+      try {
+         pool.spendAll(Arrays.asList(a, b, new UTXO(new byte[32], 0)), null);
+      } finally {
+         assertTrue(pool.contains(a) && pool.contains(b));
+         assertTrue(Arrays.equals(before, pool.getCommitment()));
+      }
+   }
+
+   private interface Worker {
+      void run(int thread);
+   }
+
+   // Runs <worker> on THREADS threads released at the same moment, and
+   // rethrows the first failure
+   private static void race(final Worker worker) throws Exception {
+      final CountDownLatch go = new CountDownLatch(1);
+      final Throwable[] failure = new Throwable[THREADS];
+      Thread[] threads = new Thread[THREADS];
+      for (int t = 0; t < THREADS; t++) {
+         final int thread = t;
+         threads[t] = new Thread(new Runnable() {
+            public void run() {
+               try {
+                  go.await();
+                  worker.run(thread);
+               } catch (Throwable x) {
+                  failure[thread] = x;
+               }
+            }
+         });
+         threads[t].start();
+      }
+      go.countDown();
+      for (Thread thread : threads)
+         thread.join();
+      for (Throwable x : failure) {
+         if (x instanceof Exception)
+            throw (Exception) x;
+         if (x != null)
+            throw new AssertionError(x);
+      }
+   }
+
+   private static RSAKeyPair keyPair(int seed) {
+      byte[] key = new byte[32];
+      key[0] = (byte) seed;
+      return new RSAKeyPair(new PRGen(key), 512);
+   }
+
+   // Spends outputs <indexes> of <from>, all owned by <owner>, into one
+   // output of <value>
+   private static Transaction spend(RSAKeyPair owner, Transaction from, double value, int... indexes) {
+      Transaction tx = new Transaction();
+      for (int index : indexes)
+         tx.addInput(from.getHash(), index);
+      tx.addOutput(value, owner.getPublicKey());
+      for (int i = 0; i < tx.numInputs(); i++)
+         tx.addSignature(owner.getPrivateKey().sign(tx.getRawDataToSign(i)), i);
+      tx.finalize();
+      return tx;
+   }
+}